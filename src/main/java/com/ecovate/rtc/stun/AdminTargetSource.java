@@ -0,0 +1,54 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetSocketAddress;
+
+import org.threadly.concurrent.SubmitterScheduler;
+
+/**
+ * {@link TargetSource} for stun servers added and removed at runtime through the 
+ * /admin/targets HTTP API.  The API is only served on the sources own listen address, never on
+ * the public one, so it can be bound to localhost or an internal network.
+ */
+public class AdminTargetSource extends ResolvingTargetSource {
+  private final InetSocketAddress listenAddress;
+
+  public AdminTargetSource(SubmitterScheduler scheduler, InetSocketAddress listenAddress, long refreshInterval) {
+    super(scheduler, refreshInterval);
+    this.listenAddress = listenAddress;
+  }
+
+  public AdminTargetSource(SubmitterScheduler scheduler, InetSocketAddress listenAddress) {
+    this(scheduler, listenAddress, DEFAULT_REFRESH_INTERVAL);
+  }
+
+  @Override
+  protected void startupSource() {
+    // starts empty, servers are only added through the API.
+  }
+
+  /**
+   * @return the address to serve the admin API on, null to not serve it.
+   */
+  public InetSocketAddress getListenAddress() {
+    return listenAddress;
+  }
+
+  /**
+   * Adds the server, hostnames are resolved on the scheduler after this returns.
+   * 
+   * @param server the server to add (host, host:port or [ipv6]:port).
+   * @return false if the server was already added.
+   */
+  public boolean add(String server) {
+    return addServer(parseServer(server));
+  }
+
+  /**
+   * @param server the server to remove (host, host:port or [ipv6]:port).
+   * @return false if the server was not added.
+   */
+  public boolean remove(String server) {
+    InetSocketAddress isa = parseServer(server);
+    return removeServer(isa);
+  }
+}
@@ -0,0 +1,615 @@
+package com.ecovate.rtc.stun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SingleThreadScheduler;
+import org.threadly.litesockets.utils.PortUtils;
+import org.threadly.util.ExceptionUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Measures what each monitored target costs a real {@link StunHTTP}, probing over UDP, so the
+ * number of targets one instance can handle is known and can be compared across releases.
+ *
+ * For each size a {@link Responders} echoing STUN requests is started on that many loopback
+ * ports and StunHTTP is pointed at them.  After the warmup the heap, allocation rate, GC
+ * pauses, file descriptors, threads and CPU are measured over the run along with the probe RTTs,
+ * which on loopback should be close to 0ms so anything more is added by stuncheck itself.
+ *
+ * The responders run in the same JVM on their own thread, their sockets and CPU are taken out of
+ * the numbers.  Running one size per JVM (ie. "--sizes 1000") keeps the sizes from affecting
+ * each other's heap and GC numbers.
+ */
+public class CapacityBenchmark {
+  private static final Logger log = LoggerFactory.getLogger(CapacityBenchmark.class);
+  private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+  private static final HealthConfig HEALTH = new HealthConfig(HealthConfig.DEFAULT_TRIP_FAILURES,
+      HealthConfig.DEFAULT_ALPHA, 100, 80, .1, .05, HealthConfig.DEFAULT_HOLD_DOWN);
+  // Sockets needed outside of the targets, for the HTTP server, selector and jars.
+  private static final int SPARE_FDS = 200;
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final int delay;
+  private final int cached;
+  private final long warmup;
+  private final long duration;
+
+  /**
+   * @param delay the delay in millis between checks.
+   * @param warmup the millis to let StunHTTP settle before measuring.
+   * @param duration the millis to measure for.
+   */
+  public CapacityBenchmark(int delay, int cached, long warmup, long duration) {
+    this.delay = delay;
+    this.cached = cached;
+    this.warmup = warmup;
+    this.duration = duration;
+  }
+
+  /**
+   * Runs each size in turn.
+   *
+   * @param label a name for the build being measured, ie. the release version.
+   */
+  public Report run(List<Integer> sizes, String label) throws InterruptedException {
+    Report report = new Report(label, delay, warmup, duration);
+    for(int size: sizes) {
+      log.info("Measuring {} targets", size);
+      SizeResult sr;
+      try {
+        sr = run(size);
+      } catch(IOException e) {
+        log.error("Problem measuring {} targets\n{}", size, ExceptionUtils.stackToString(e));
+        sr = new SizeResult(size);
+        sr.error = e.toString();
+      }
+      report.results.add(sr);
+    }
+    return report;
+  }
+
+  /**
+   * Measures a single size.
+   */
+  public SizeResult run(int size) throws IOException, InterruptedException {
+    long maxFds = maxFds();
+    if(maxFds > 0 && openFds()+(size*2)+SPARE_FDS > maxFds) {
+      throw new IOException("Not enough file descriptors for "+size+" targets, the limit is "+maxFds);
+    }
+    SizeResult sr = new SizeResult(size);
+    Responders responders = new Responders(size);
+    try {
+      responders.start();
+      long baseHeap = settledHeap();
+      long baseFds = openFds();
+      int baseThreads = threads.getThreadCount();
+      threads.resetPeakThreadCount();
+
+      SingleThreadScheduler sourceScheduler = new SingleThreadScheduler();
+      InetSocketAddress listen = new InetSocketAddress("127.0.0.1", PortUtils.findTCPPort());
+      StunHTTP stunHTTP = new StunHTTP(listen, Collections.emptyList(),
+          Collections.singletonList(new StaticTargetSource(responders.getAddresses(), sourceScheduler)),
+          delay, cached, HEALTH, new TargetRanking(), null, null, null, null, null, null);
+      try {
+        Thread.sleep(warmup);
+        GcWatcher gc = new GcWatcher();
+        gc.start();
+        long[] requests = requestCounts(stunHTTP);
+        long measureStart = StunClock.SYSTEM.millis();
+        PipelineStats.resetPeak();
+        long wallStart = System.nanoTime();
+        long cpuStart = processCpu()-threadCpu(responders.threadId);
+        long allocStart = allocatedBytes(responders.threadId);
+
+        Thread.sleep(duration);
+
+        long wall = System.nanoTime()-wallStart;
+        long cpu = processCpu()-threadCpu(responders.threadId)-cpuStart;
+        long alloc = allocatedBytes(responders.threadId)-allocStart;
+        long[] requestsEnd = requestCounts(stunHTTP);
+        gc.stop();
+
+        sr.threads = threads.getThreadCount()-baseThreads;
+        sr.threads_peak = threads.getPeakThreadCount()-baseThreads;
+        sr.open_fds = openFds()-baseFds;
+        sr.gc_count = gc.count.get();
+        sr.gc_pause_millis_total = gc.total.get();
+        sr.gc_pause_millis_max = gc.max.get();
+        sr.alloc_bytes_per_second = allocStart < 0 ? -1 : (long)(alloc/(wall/1000000000.0));
+        sr.cpu_percent = cpuStart < 0 ? "-1" : String.format("%.4f", cpu*100.0/wall);
+        sr.probes_expected = (long)size*duration/delay;
+        sr.probes_sent = requestsEnd[0]-requests[0];
+        sr.probes_timed_out = requestsEnd[1]-requests[1];
+        sr.cpu_micros_per_probe = cpuStart < 0 || sr.probes_sent == 0 ? "-1" : String.format("%.4f", cpu/1000.0/sr.probes_sent);
+        sr.setRtts(rtts(stunHTTP, measureStart));
+        long maxLag = 0;
+        for(PipelineStats.Stage stage: PipelineStats.Stage.values()) {
+          long lag = PipelineStats.peak(stage)/1000000;
+          sr.pipeline_lag_millis_max.put(stage.name().toLowerCase(), lag);
+          maxLag = Math.max(maxLag, lag);
+        }
+        sr.measurement_untrustworthy = maxLag > HEALTH.getMaxPipelineLag();
+
+        long[] status = timedGet(listen, "/stun_status");
+        sr.status_bytes = status[0];
+        sr.status_millis = status[1];
+        long[] metrics = timedGet(listen, "/metrics");
+        sr.metrics_bytes = metrics[0];
+        sr.metrics_millis = metrics[1];
+
+        sr.heap_bytes = settledHeap()-baseHeap;
+        sr.heap_bytes_per_target = sr.heap_bytes/size;
+      } finally {
+        stunHTTP.stop();
+        sourceScheduler.shutdownNow();
+      }
+      sr.responses = responders.getResponses();
+    } finally {
+      responders.close();
+    }
+    log.info("Measured {} targets:{}", size, GSON.toJson(sr));
+    return sr;
+  }
+
+  private static long[] requestCounts(StunHTTP stunHTTP) {
+    long[] counts = new long[2];
+    for(StunTarget st: stunHTTP.getTargets()) {
+      counts[0] += st.client.totalRequests();
+      counts[1] += st.client.totalFailedRequests();
+    }
+    return counts;
+  }
+
+  /**
+   * @return the RTTs of the completed probes sent since the start time, sorted.
+   */
+  private static long[] rtts(StunHTTP stunHTTP, long start) {
+    long[] rtts = new long[1024];
+    int count = 0;
+    for(StunTarget st: stunHTTP.getTargets()) {
+      for(long[] sample: st.client.currentSamples()) {
+        if(sample[0] < start) {
+          continue;
+        }
+        if(count == rtts.length) {
+          rtts = Arrays.copyOf(rtts, count*2);
+        }
+        rtts[count++] = sample[1];
+      }
+    }
+    rtts = Arrays.copyOf(rtts, count);
+    Arrays.sort(rtts);
+    return rtts;
+  }
+
+  private static long settledHeap() throws InterruptedException {
+    for(int i=0; i<3; i++) {
+      System.gc();
+      Thread.sleep(200);
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long processCpu() {
+    if(ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  private long threadCpu(long threadId) {
+    return threads.isThreadCpuTimeSupported() ? Math.max(0, threads.getThreadCpuTime(threadId)) : 0;
+  }
+
+  /**
+   * @return the bytes allocated by every live thread but the excluded one, -1 if the JVM can not tell.
+   */
+  private long allocatedBytes(long excludeThreadId) {
+    if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)threads;
+    if(!tmx.isThreadAllocatedMemorySupported() || !tmx.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    long[] ids = tmx.getAllThreadIds();
+    long[] bytes = tmx.getThreadAllocatedBytes(ids);
+    long total = 0;
+    for(int i=0; i<ids.length; i++) {
+      if(ids[i] != excludeThreadId && bytes[i] > 0) {
+        total += bytes[i];
+      }
+    }
+    return total;
+  }
+
+  static long openFds() {
+    if(ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean) {
+      return ((UnixOperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getOpenFileDescriptorCount();
+    }
+    return -1;
+  }
+
+  static long maxFds() {
+    if(ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean) {
+      return ((UnixOperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getMaxFileDescriptorCount();
+    }
+    return -1;
+  }
+
+  /**
+   * @return the size in bytes and the millis it took to get the path from the HTTP server.
+   */
+  private static long[] timedGet(InetSocketAddress listen, String path) {
+    long start = System.nanoTime();
+    try {
+      HttpURLConnection conn = (HttpURLConnection)new URL("http://"+listen.getAddress().getHostAddress()+":"+
+          listen.getPort()+path).openConnection();
+      conn.setConnectTimeout(5000);
+      conn.setReadTimeout(30000);
+      try {
+        conn.getResponseCode();
+        try(InputStream is = conn.getErrorStream() != null ? conn.getErrorStream() : conn.getInputStream()) {
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          byte[] ba = new byte[8192];
+          int read;
+          while((read = is.read(ba)) >= 0) {
+            baos.write(ba, 0, read);
+          }
+          return new long[] {baos.size(), (System.nanoTime()-start)/1000000};
+        }
+      } finally {
+        conn.disconnect();
+      }
+    } catch(IOException e) {
+      log.error("Problem getting:{}\n{}", path, ExceptionUtils.stackToString(e));
+      return new long[] {-1, -1};
+    }
+  }
+
+  /**
+   * Tallies the GC pauses reported while it is started.
+   */
+  private static class GcWatcher implements NotificationListener {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void start() {
+      for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+        if(gc instanceof NotificationEmitter) {
+          ((NotificationEmitter)gc).addNotificationListener(this,
+              (n)->n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION), null);
+        }
+      }
+    }
+
+    void stop() {
+      for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+        if(gc instanceof NotificationEmitter) {
+          try {
+            ((NotificationEmitter)gc).removeNotificationListener(this);
+          } catch(Exception e) {
+            // was never added.
+          }
+        }
+      }
+    }
+
+    @Override
+    public void handleNotification(Notification n, Object handback) {
+      long pause = GarbageCollectionNotificationInfo.from((CompositeData)n.getUserData()).getGcInfo().getDuration();
+      count.incrementAndGet();
+      total.addAndGet(pause);
+      long m = max.get();
+      while(pause > m && !max.compareAndSet(m, pause)) {
+        m = max.get();
+      }
+    }
+  }
+
+  /**
+   * STUN responders on loopback ports, each echoes every request straight back.  The client only
+   * matches responses on the transaction ID so an echo is enough.  All of them are handled on one
+   * thread so their CPU can be taken out of the measurements.
+   */
+  static class Responders implements Runnable {
+    private final List<InetSocketAddress> addresses = new ArrayList<>();
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final AtomicLong responses = new AtomicLong();
+    private final Selector selector;
+    private final Thread thread;
+    private final long threadId;
+    private volatile boolean running = true;
+
+    Responders(int count) throws IOException {
+      selector = Selector.open();
+      try {
+        for(int i=0; i<count; i++) {
+          DatagramChannel dc = DatagramChannel.open();
+          channels.add(dc);
+          dc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+          dc.configureBlocking(false);
+          dc.register(selector, SelectionKey.OP_READ);
+          addresses.add((InetSocketAddress)dc.getLocalAddress());
+        }
+      } catch(IOException e) {
+        close();
+        throw e;
+      }
+      thread = new Thread(this, "stun-responders");
+      thread.setDaemon(true);
+      threadId = thread.getId();
+    }
+
+    void start() {
+      thread.start();
+    }
+
+    List<InetSocketAddress> getAddresses() {
+      return addresses;
+    }
+
+    long getResponses() {
+      return responses.get();
+    }
+
+    @Override
+    public void run() {
+      ByteBuffer bb = ByteBuffer.allocate(1500);
+      while(running) {
+        try {
+          selector.select(100);
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while(it.hasNext()) {
+            DatagramChannel dc = (DatagramChannel)it.next().channel();
+            it.remove();
+            bb.clear();
+            InetSocketAddress from;
+            while((from = (InetSocketAddress)dc.receive(bb)) != null) {
+              bb.flip();
+              responses.incrementAndGet();
+              dc.send(bb, from);
+              bb.clear();
+            }
+          }
+        } catch(IOException e) {
+          if(running) {
+            log.error("Problem responding\n{}", ExceptionUtils.stackToString(e));
+          }
+        }
+      }
+    }
+
+    void close() {
+      running = false;
+      if(thread != null) {
+        selector.wakeup();
+        try {
+          thread.join(1000);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      for(DatagramChannel dc: channels) {
+        try {
+          dc.close();
+        } catch(IOException e) {
+          // closing anyway.
+        }
+      }
+      try {
+        selector.close();
+      } catch(IOException e) {
+        // closing anyway.
+      }
+    }
+  }
+
+  /**
+   * What a single size costs.  Heap, file descriptors and threads are what StunHTTP added over
+   * the JVM with just the responders running.  CPU is a percent of one core.
+   */
+  public static class SizeResult {
+    private final int targets;
+    private String error;
+    private long heap_bytes;
+    private long heap_bytes_per_target;
+    private long alloc_bytes_per_second;
+    private long gc_count;
+    private long gc_pause_millis_total;
+    private long gc_pause_millis_max;
+    private long open_fds;
+    private int threads;
+    private int threads_peak;
+    private String cpu_percent = "0.0000";
+    private String cpu_micros_per_probe = "0.0000";
+    private long probes_expected;
+    private long probes_sent;
+    private long probes_timed_out;
+    private long responses;
+    private int rtt_samples;
+    private long rtt_millis_p50;
+    private long rtt_millis_p90;
+    private long rtt_millis_p99;
+    private long rtt_millis_max;
+    private final TreeMap<String, Long> pipeline_lag_millis_max = new TreeMap<>();
+    private boolean measurement_untrustworthy;
+    private long status_bytes;
+    private long status_millis;
+    private long metrics_bytes;
+    private long metrics_millis;
+
+    SizeResult(int targets) {
+      this.targets = targets;
+    }
+
+    void setRtts(long[] sorted) {
+      rtt_samples = sorted.length;
+      if(sorted.length == 0) {
+        return;
+      }
+      rtt_millis_p50 = percentile(sorted, 50);
+      rtt_millis_p90 = percentile(sorted, 90);
+      rtt_millis_p99 = percentile(sorted, 99);
+      rtt_millis_max = sorted[sorted.length-1];
+    }
+
+    static long percentile(long[] sorted, double pct) {
+      int i = (int)Math.ceil(sorted.length*pct/100.0)-1;
+      return sorted[Math.max(0, Math.min(sorted.length-1, i))];
+    }
+
+    public int getTargets() {
+      return targets;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public long getHeap_bytes_per_target() {
+      return heap_bytes_per_target;
+    }
+
+    public long getProbes_sent() {
+      return probes_sent;
+    }
+
+    public long getProbes_timed_out() {
+      return probes_timed_out;
+    }
+
+    public long getRtt_millis_p99() {
+      return rtt_millis_p99;
+    }
+  }
+
+  /**
+   * The results of every size along with what they were measured on.
+   */
+  public static class Report {
+    private final String label;
+    private final String java = System.getProperty("java.vm.name")+" "+System.getProperty("java.version");
+    private final String os = System.getProperty("os.name")+" "+System.getProperty("os.arch");
+    private final int cpus = Runtime.getRuntime().availableProcessors();
+    private final long max_heap_bytes = Runtime.getRuntime().maxMemory();
+    private final long max_fds = maxFds();
+    private final long delay_millis;
+    private final long warmup_seconds;
+    private final long duration_seconds;
+    private final List<SizeResult> results = new ArrayList<>();
+
+    Report(String label, long delay, long warmup, long duration) {
+      this.label = label;
+      this.delay_millis = delay;
+      this.warmup_seconds = warmup/1000;
+      this.duration_seconds = duration/1000;
+    }
+
+    public List<SizeResult> getResults() {
+      return results;
+    }
+
+    public String toJson() {
+      return GSON.toJson(this);
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    LoggingConfig.configureLogging();
+    ArgumentParser parser = ArgumentParsers.newFor("CapacityBenchmark").build()
+        .defaultHelp(true)
+        .description("Measures what each target costs StunHTTP against loopback stun responders");
+    parser.addArgument("--sizes")
+        .setDefault("10,100,1000,10000")
+        .help("Comma separated numbers of targets to measure");
+    parser.addArgument("--warmup")
+        .type(Integer.class)
+        .setDefault(30)
+        .help("Seconds to run each size before measuring");
+    parser.addArgument("--duration")
+        .type(Integer.class)
+        .setDefault(60)
+        .help("Seconds to measure each size for");
+    parser.addArgument("-d", "--delay")
+        .type(Integer.class)
+        .setDefault(5)
+        .help("Delay in seconds between checks");
+    parser.addArgument("--cachedResults")
+        .type(Integer.class)
+        .setDefault(100)
+        .help("Number of results to keep cached for checking");
+    parser.addArgument("--label")
+        .setDefault("")
+        .help("Name of the build being measured, ie. the release version");
+    parser.addArgument("--output")
+        .help("File to write the JSON report to, it is printed if not set");
+    Namespace res = null;
+    try {
+      res = parser.parseArgs(args);
+    } catch (ArgumentParserException e) {
+      parser.handleError(e);
+      System.exit(1);
+    }
+    List<Integer> sizes = new ArrayList<>();
+    try {
+      for(String size: res.getString("sizes").split(",")) {
+        if(!size.trim().isEmpty()) {
+          sizes.add(Integer.parseInt(size.trim()));
+        }
+      }
+    } catch(NumberFormatException e) {
+      parser.handleError(new ArgumentParserException("Bad sizes:"+res.getString("sizes"), parser));
+      System.exit(1);
+    }
+    CapacityBenchmark benchmark = new CapacityBenchmark(res.getInt("delay")*1000, res.getInt("cachedResults"),
+        res.getInt("warmup")*1000L, res.getInt("duration")*1000L);
+    String json = benchmark.run(sizes, res.getString("label")).toJson();
+    if(res.getString("output") != null) {
+      Files.write(new File(res.getString("output")).toPath(), json.getBytes(StandardCharsets.UTF_8));
+    } else {
+      System.out.println(json);
+    }
+    System.exit(0);
+  }
+}
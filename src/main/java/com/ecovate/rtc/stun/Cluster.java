@@ -0,0 +1,276 @@
+package com.ecovate.rtc.stun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.AbstractService;
+import org.threadly.util.ExceptionUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Splits the targets between a static list of stuncheck nodes.  Every node is given the same
+ * node list and polls the others' {@value #SUMMARY_PATH} endpoint, a node is live while it has
+ * answered within the last {@value #MISSED_POLLS} polls.  Targets are split between the live
+ * nodes with a {@link HashRing}, so when a node comes or goes only its share of the targets move.
+ *
+ * Each poll also caches the peer's summary of the targets it probes, which is what
+ * {@link #aggregate(JsonObject)} merges with the local stats to serve the whole cluster's status
+ * from any node.
+ */
+public class Cluster extends AbstractService {
+  private static final Logger log = LoggerFactory.getLogger(Cluster.class);
+  public static final String SUMMARY_PATH = "/cluster/summary";
+  public static final long DEFAULT_POLL_INTERVAL = 5000;
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+  public static final int MISSED_POLLS = 3;
+  private static final int CONNECT_TIMEOUT = 1000;
+  private static final int READ_TIMEOUT = 2000;
+
+  private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+  private final Runnable poller = ()->pollAndReschedule();
+  private final String self;
+  private final StunClock clock;
+  private final SubmitterScheduler scheduler;
+  private final PeerClient client;
+  private final long pollInterval;
+  private volatile HashRing ring;
+  private volatile Listener listener;
+  private long round = 0;
+
+  /**
+   * @param self this nodes id, the host:port of its HTTP server as it appears in the node list.
+   * @param nodes every node in the cluster, including this one.
+   * @param scheduler the scheduler to poll the peers on, polls block so this should not be the probe scheduler.
+   */
+  public Cluster(String self, List<String> nodes, StunClock clock, SubmitterScheduler scheduler, long pollInterval) {
+    this(self, nodes, clock, scheduler, pollInterval, (node)->httpGet(node));
+  }
+
+  Cluster(String self, List<String> nodes, StunClock clock, SubmitterScheduler scheduler, long pollInterval, PeerClient client) {
+    this.self = self;
+    this.clock = clock;
+    this.scheduler = scheduler;
+    this.pollInterval = Math.max(100, pollInterval);
+    this.client = client;
+    for(String node: nodes) {
+      if(!node.equals(self)) {
+        peers.put(node, new Peer());
+      }
+    }
+    // Peers are only counted once they answer, until then this node probes their share as well.
+    this.ring = new HashRing(Collections.singleton(self), DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * Sets the {@link Listener} told when the live nodes change.
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  protected void startupService() {
+    scheduler.execute(poller);
+  }
+
+  @Override
+  protected void shutdownService() {
+  }
+
+  public String getSelf() {
+    return self;
+  }
+
+  /**
+   * @return true if this node should probe the target.
+   */
+  public boolean owns(String targetKey) {
+    return self.equals(ring.owner(targetKey));
+  }
+
+  /**
+   * @return the node that should probe the target.
+   */
+  public String owner(String targetKey) {
+    return ring.owner(targetKey);
+  }
+
+  /**
+   * @return the nodes currently live, including this one.
+   */
+  public Set<String> getLiveNodes() {
+    return new TreeSet<>(ring.getNodes());
+  }
+
+  /**
+   * @return the state of each node for /cluster/members.
+   */
+  public Map<String, Object> getMembers() {
+    TreeMap<String, Object> members = new TreeMap<>();
+    Set<String> live = getLiveNodes();
+    long now = clock.millis();
+    for(Map.Entry<String, Peer> e: peers.entrySet()) {
+      Peer p = e.getValue();
+      TreeMap<String, Object> m = new TreeMap<>();
+      m.put("live", live.contains(e.getKey()));
+      m.put("last_seen_ms", p.lastSeen < 0 ? -1 : now-p.lastSeen);
+      m.put("targets", p.targets == null ? 0 : p.targets.size());
+      members.put(e.getKey(), m);
+    }
+    TreeMap<String, Object> m = new TreeMap<>();
+    m.put("live", true);
+    m.put("self", true);
+    members.put(self, m);
+    return members;
+  }
+
+  private void pollAndReschedule() {
+    try {
+      poll();
+    } catch(Exception e) {
+      log.error("Problem polling cluster peers\n{}", ExceptionUtils.stackToString(e));
+    }
+    if(isRunning()) {
+      scheduler.schedule(poller, pollInterval);
+    }
+  }
+
+  /**
+   * Polls every peer once and rebuilds the ring if the live nodes changed.  Liveness is counted
+   * in poll rounds rather than time, so a round slowed down by hung peers does not age out the
+   * peers that did answer.
+   */
+  void poll() {
+    round++;
+    for(Map.Entry<String, Peer> e: peers.entrySet()) {
+      Peer p = e.getValue();
+      try {
+        JsonObject summary = new JsonParser().parse(client.fetch(e.getKey())).getAsJsonObject();
+        JsonElement targets = summary.get("targets");
+        p.targets = targets != null && targets.isJsonObject() ? targets.getAsJsonObject() : new JsonObject();
+        p.lastSeen = clock.millis();
+        p.lastSeenRound = round;
+      } catch(IOException | RuntimeException ex) {
+        if(log.isDebugEnabled()) {
+          log.debug("Problem polling cluster peer:{}:{}", e.getKey(), ex.toString());
+        }
+      }
+    }
+    updateRing();
+  }
+
+  private void updateRing() {
+    TreeSet<String> live = new TreeSet<>();
+    live.add(self);
+    for(Map.Entry<String, Peer> e: peers.entrySet()) {
+      long lastSeenRound = e.getValue().lastSeenRound;
+      if(lastSeenRound > 0 && round-lastSeenRound < MISSED_POLLS) {
+        live.add(e.getKey());
+      }
+    }
+    if(live.equals(new TreeSet<>(ring.getNodes()))) {
+      return;
+    }
+    log.info("Cluster nodes changed from {} to {}", ring.getNodes(), live);
+    ring = new HashRing(live, DEFAULT_VIRTUAL_NODES);
+    Listener l = listener;
+    if(l != null) {
+      l.membershipChanged(live);
+    }
+  }
+
+  /**
+   * Merges the local targets with the cached summaries of the live peers, each target is tagged
+   * with the "node" that probed it.  If more than one node has a target while the targets are
+   * moving, the current owner's stats are used.
+   *
+   * @param local the local target stats keyed by target key.
+   */
+  public Map<String, JsonObject> aggregate(JsonObject local) {
+    TreeMap<String, JsonObject> merged = new TreeMap<>();
+    Set<String> live = getLiveNodes();
+    List<Map.Entry<String, JsonObject>> summaries = new ArrayList<>();
+    summaries.add(new AbstractMap.SimpleImmutableEntry<>(self, local));
+    for(Map.Entry<String, Peer> e: peers.entrySet()) {
+      JsonObject targets = e.getValue().targets;
+      if(targets != null && live.contains(e.getKey())) {
+        summaries.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), targets));
+      }
+    }
+    for(Map.Entry<String, JsonObject> s: summaries) {
+      for(Map.Entry<String, JsonElement> t: s.getValue().entrySet()) {
+        if(!t.getValue().isJsonObject()) {
+          continue;
+        }
+        if(merged.containsKey(t.getKey()) && !s.getKey().equals(owner(t.getKey()))) {
+          continue;
+        }
+        JsonObject stats = t.getValue().getAsJsonObject().deepCopy();
+        stats.addProperty("node", s.getKey());
+        merged.put(t.getKey(), stats);
+      }
+    }
+    return merged;
+  }
+
+  static String httpGet(String node) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection)new URL("http://"+node+SUMMARY_PATH).openConnection();
+    conn.setConnectTimeout(CONNECT_TIMEOUT);
+    conn.setReadTimeout(READ_TIMEOUT);
+    try {
+      if(conn.getResponseCode() != 200) {
+        throw new IOException("Got "+conn.getResponseCode()+" from "+node);
+      }
+      try(InputStream is = conn.getInputStream()) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] ba = new byte[8192];
+        int read;
+        while((read = is.read(ba)) >= 0) {
+          baos.write(ba, 0, read);
+        }
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+      }
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  private static class Peer {
+    private volatile long lastSeen = -1;
+    private volatile long lastSeenRound = 0;
+    private volatile JsonObject targets;
+  }
+
+  /**
+   * Fetches a peer's {@value #SUMMARY_PATH} body.
+   */
+  interface PeerClient {
+    String fetch(String node) throws IOException;
+  }
+
+  /**
+   * Gets told when nodes join or leave, so targets can be moved.
+   */
+  public interface Listener {
+    public void membershipChanged(Set<String> liveNodes);
+  }
+}
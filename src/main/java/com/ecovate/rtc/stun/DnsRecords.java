@@ -0,0 +1,323 @@
+package com.ecovate.rtc.stun;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.prometheus.client.Counter;
+
+/**
+ * The A/AAAA records {@link DnsResponder} answers with.  Every time the records for a name change
+ * complete response packets are encoded for it and swapped in, so answering a query is just
+ * finding the name and copying the query ID and question into a copy of the right packet.
+ */
+public class DnsRecords {
+  private static final Counter queries = Counter.build()
+      .name("stun_dns_queries_total")
+      .help("Total DNS queries by result.")
+      .labelNames("result")
+      .register();
+  private static final Counter.Child answeredQueries = queries.labels("answered");
+  private static final Counter.Child refusedQueries = queries.labels("refused");
+  private static final Counter.Child droppedQueries = queries.labels("dropped");
+
+  public static final int DEFAULT_TTL = 5;
+  static final int MAX_UDP_SIZE = 512;
+  static final int HEADER_SIZE = 12;
+  static final int TYPE_A = 1;
+  static final int TYPE_AAAA = 28;
+  static final int CLASS_IN = 1;
+  static final int RCODE_NOTIMP = 4;
+  static final int RCODE_REFUSED = 5;
+  private static final int FLAG_QR = 0x8000;
+  private static final int FLAG_AA = 0x0400;
+  private static final int FLAG_RD = 0x0100;
+
+  private final int ttl;
+  private volatile Entry[] entries = new Entry[0];
+
+  /**
+   * @param ttl the TTL in seconds to give every answer.
+   */
+  public DnsRecords(int ttl) {
+    this.ttl = Math.max(0, ttl);
+  }
+
+  public int getTTL() {
+    return ttl;
+  }
+
+  /**
+   * Sets the addresses to answer with for a name, in the order they should be given out.
+   *
+   * @return true if the records for the name changed.
+   */
+  public synchronized boolean setRecords(String name, List<InetAddress> addresses) {
+    byte[] wireName = encodeName(name);
+    ArrayList<Inet4Address> v4 = new ArrayList<>();
+    ArrayList<Inet6Address> v6 = new ArrayList<>();
+    for(InetAddress ia: addresses) {
+      if(ia instanceof Inet4Address) {
+        v4.add((Inet4Address)ia);
+      } else if(ia instanceof Inet6Address) {
+        v6.add((Inet6Address)ia);
+      }
+    }
+    Entry[] current = entries;
+    int idx = indexOf(current, wireName);
+    if(idx >= 0 && current[idx].v4.equals(v4) && current[idx].v6.equals(v6)) {
+      return false;
+    }
+    Entry entry = new Entry(wireName, v4, v6, ttl);
+    Entry[] updated;
+    if(idx >= 0) {
+      updated = current.clone();
+      updated[idx] = entry;
+    } else {
+      updated = Arrays.copyOf(current, current.length+1);
+      updated[current.length] = entry;
+    }
+    entries = updated;
+    return true;
+  }
+
+  /**
+   * Stops answering for a name, queries for it will be refused.
+   *
+   * @return true if there were records for the name.
+   */
+  public synchronized boolean remove(String name) {
+    Entry[] current = entries;
+    int idx = indexOf(current, encodeName(name));
+    if(idx < 0) {
+      return false;
+    }
+    Entry[] updated = new Entry[current.length-1];
+    System.arraycopy(current, 0, updated, 0, idx);
+    System.arraycopy(current, idx+1, updated, idx, updated.length-idx);
+    entries = updated;
+    return true;
+  }
+
+  /**
+   * @return the addresses currently given out for a name, null if the name is not known.
+   */
+  public List<InetAddress> getRecords(String name) {
+    Entry[] current = entries;
+    int idx = indexOf(current, encodeName(name));
+    if(idx < 0) {
+      return null;
+    }
+    ArrayList<InetAddress> addresses = new ArrayList<>(current[idx].v4);
+    addresses.addAll(current[idx].v6);
+    return addresses;
+  }
+
+  /**
+   * Builds the response to a DNS query.  Queries for names that are not known are refused by
+   * rewriting the query in place.
+   *
+   * @param query the query packet, from its position to its limit.
+   * @return the response to send or null if the packet should be dropped.
+   */
+  ByteBuffer answer(ByteBuffer query) {
+    final int start = query.position();
+    final int length = query.remaining();
+    if(length < HEADER_SIZE) {
+      droppedQueries.inc();
+      return null;
+    }
+    final int flags = query.getShort(start+2) & 0xffff;
+    if((flags & FLAG_QR) != 0) {
+      droppedQueries.inc();
+      return null;
+    }
+    if(((flags >> 11) & 0xf) != 0 || (query.getShort(start+4) & 0xffff) != 1) {
+      refusedQueries.inc();
+      return error(query, start, HEADER_SIZE, flags, RCODE_NOTIMP, false);
+    }
+    // Walk the labels of the question name, compression is not allowed here.
+    final int nameStart = start+HEADER_SIZE;
+    final int end = start+length;
+    int pos = nameStart;
+    while(true) {
+      if(pos >= end) {
+        droppedQueries.inc();
+        return null;
+      }
+      int labelLength = query.get(pos) & 0xff;
+      if(labelLength == 0) {
+        pos++;
+        break;
+      } else if(labelLength > 63) {
+        droppedQueries.inc();
+        return null;
+      }
+      pos += labelLength+1;
+    }
+    final int nameLength = pos-nameStart;
+    if(pos+4 > end) {
+      droppedQueries.inc();
+      return null;
+    }
+    final int qtype = query.getShort(pos) & 0xffff;
+    final int qclass = query.getShort(pos+2) & 0xffff;
+    final int questionLength = nameLength+4;
+    Entry entry = qclass == CLASS_IN ? find(query, nameStart, nameLength) : null;
+    if(entry == null) {
+      refusedQueries.inc();
+      return error(query, start, HEADER_SIZE+questionLength, flags, RCODE_REFUSED, true);
+    }
+    final byte[] packet;
+    if(qtype == TYPE_A) {
+      packet = entry.a;
+    } else if(qtype == TYPE_AAAA) {
+      packet = entry.aaaa;
+    } else {
+      packet = entry.empty;
+    }
+    ByteBuffer response = ByteBuffer.allocate(packet.length);
+    response.put(packet);
+    response.putShort(0, query.getShort(start));
+    response.putShort(2, (short)(FLAG_QR | FLAG_AA | (flags & FLAG_RD)));
+    // The question is copied back as it was sent so the case of the name is kept.
+    for(int i=0; i<questionLength; i++) {
+      response.put(HEADER_SIZE+i, query.get(nameStart+i));
+    }
+    response.flip();
+    answeredQueries.inc();
+    return response;
+  }
+
+  private static ByteBuffer error(ByteBuffer query, int start, int length, int flags, int rcode, boolean question) {
+    if(query.isReadOnly()) {
+      ByteBuffer copy = ByteBuffer.allocate(length);
+      for(int i=0; i<length; i++) {
+        copy.put(i, query.get(start+i));
+      }
+      query = copy;
+      start = 0;
+    }
+    query.putShort(start+2, (short)(FLAG_QR | (flags & 0x7800) | (flags & FLAG_RD) | rcode));
+    query.putShort(start+4, (short)(question ? 1 : 0));
+    query.putShort(start+6, (short)0);
+    query.putShort(start+8, (short)0);
+    query.putShort(start+10, (short)0);
+    query.limit(start+length);
+    return query;
+  }
+
+  private Entry find(ByteBuffer query, int nameStart, int nameLength) {
+    Entry[] current = entries;
+    for(int i=0; i<current.length; i++) {
+      byte[] wireName = current[i].wireName;
+      if(wireName.length != nameLength) {
+        continue;
+      }
+      int j = 0;
+      while(j < nameLength && toLower(query.get(nameStart+j)) == wireName[j]) {
+        j++;
+      }
+      if(j == nameLength) {
+        return current[i];
+      }
+    }
+    return null;
+  }
+
+  private static int indexOf(Entry[] current, byte[] wireName) {
+    for(int i=0; i<current.length; i++) {
+      if(Arrays.equals(current[i].wireName, wireName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static byte toLower(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte)(b | 0x20) : b;
+  }
+
+  /**
+   * @return the name lowercased in DNS wire format.
+   */
+  static byte[] encodeName(String name) {
+    String n = name.toLowerCase();
+    if(n.endsWith(".")) {
+      n = n.substring(0, n.length()-1);
+    }
+    ByteBuffer bb = ByteBuffer.allocate(256);
+    try {
+      for(String label: n.split("\\.")) {
+        byte[] ba = label.getBytes(StandardCharsets.US_ASCII);
+        if(ba.length == 0 || ba.length > 63) {
+          throw new IllegalArgumentException("Bad DNS name:"+name);
+        }
+        bb.put((byte)ba.length);
+        bb.put(ba);
+      }
+      bb.put((byte)0);
+    } catch(BufferOverflowException e) {
+      throw new IllegalArgumentException("DNS name too long:"+name);
+    }
+    return Arrays.copyOf(bb.array(), bb.position());
+  }
+
+  /**
+   * The pre-encoded responses for a single name.
+   */
+  private static class Entry {
+    final byte[] wireName;
+    final List<Inet4Address> v4;
+    final List<Inet6Address> v6;
+    final byte[] a;
+    final byte[] aaaa;
+    final byte[] empty;
+
+    Entry(byte[] wireName, List<Inet4Address> v4, List<Inet6Address> v6, int ttl) {
+      this.wireName = wireName;
+      this.v4 = v4;
+      this.v6 = v6;
+      this.a = encode(wireName, TYPE_A, v4, ttl);
+      this.aaaa = encode(wireName, TYPE_AAAA, v6, ttl);
+      this.empty = encode(wireName, 0, new ArrayList<InetAddress>(), ttl);
+    }
+
+    /**
+     * Encodes a full response with as many of the addresses as fit in a plain UDP response.
+     * The ID, RD flag and question type are filled in from each query.
+     */
+    private static byte[] encode(byte[] wireName, int type, List<? extends InetAddress> addresses, int ttl) {
+      int questionLength = wireName.length+4;
+      int rdLength = type == TYPE_AAAA ? 16 : 4;
+      int recordLength = 12+rdLength;
+      int count = Math.min(addresses.size(), (MAX_UDP_SIZE-HEADER_SIZE-questionLength)/recordLength);
+      ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE+questionLength+(count*recordLength));
+      bb.putShort((short)0);
+      bb.putShort((short)(FLAG_QR | FLAG_AA));
+      bb.putShort((short)1);
+      bb.putShort((short)count);
+      bb.putShort((short)0);
+      bb.putShort((short)0);
+      bb.put(wireName);
+      bb.putShort((short)type);
+      bb.putShort((short)CLASS_IN);
+      for(int i=0; i<count; i++) {
+        // Pointer back to the name in the question.
+        bb.putShort((short)(0xc000 | HEADER_SIZE));
+        bb.putShort((short)type);
+        bb.putShort((short)CLASS_IN);
+        bb.putInt(ttl);
+        bb.putShort((short)rdLength);
+        bb.put(addresses.get(i).getAddress());
+      }
+      return bb.array();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.ecovate.rtc.stun;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.litesockets.Client;
+import org.threadly.litesockets.SocketExecuter;
+import org.threadly.litesockets.UDPServer;
+import org.threadly.litesockets.buffers.MergedByteBuffers;
+import org.threadly.util.AbstractService;
+
+/**
+ * UDP DNS server that answers queries from the pre-encoded {@link DnsRecords}.  The client the
+ * server creates for each source ip:port is closed once its answers are written, so nothing is 
+ * kept around for every resolver that has ever asked.
+ */
+public class DnsResponder extends AbstractService {
+  private static final Logger log = LoggerFactory.getLogger(DnsResponder.class);
+
+  private final DnsRecords records;
+  private final UDPServer server;
+  private final Client.Reader reader = (c)->onRead(c);
+
+  public DnsResponder(SocketExecuter se, InetSocketAddress listenAddress, DnsRecords records) throws IOException {
+    this.records = records;
+    se.startIfNotStarted();
+    server = se.createUDPServer(listenAddress.getAddress().getHostAddress(), listenAddress.getPort());
+    server.setClientAcceptor((c)->c.setReader(reader));
+    log.info("DNS responder listening on:{}", listenAddress);
+  }
+
+  @Override
+  protected void startupService() {
+    server.start();
+  }
+
+  @Override
+  protected void shutdownService() {
+    server.close();
+  }
+
+  private void onRead(Client c) {
+    MergedByteBuffers mbb = c.getRead();
+    ListenableFuture<?> lastWrite = null;
+    while(mbb.remaining() > 0) {
+      ByteBuffer response = records.answer(mbb.popBuffer());
+      if(response != null) {
+        lastWrite = c.write(response);
+      }
+    }
+    if(lastWrite == null) {
+      c.close();
+    } else {
+      lastWrite.listener(()->c.close());
+    }
+  }
+}
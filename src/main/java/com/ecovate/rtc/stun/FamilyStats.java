@@ -0,0 +1,62 @@
+package com.ecovate.rtc.stun;
+
+/**
+ * Current latency and failures of all of a hostnames targets in one address family, so a slow
+ * IPv4 or IPv6 path shows up in /stun_status/{hostname}:{port}.
+ */
+class FamilyStats {
+
+  private transient double latencyTotal;
+  private transient int latencyTargets;
+  private transient double failedTotal;
+  private transient double ewmaLatencyTotal;
+
+  private int targets;
+  private int up;
+  private String current_latency;
+  private String current_failed;
+  private String ewma_latency;
+
+  void add(SimpleStunClient ssc, HealthTracker ht) {
+    targets++;
+    if(ht.isUp()) {
+      up++;
+    }
+    if(ssc.currentCompletedPCT() > 0) {
+      latencyTotal += ssc.currentLatencyAvg();
+      ewmaLatencyTotal += ht.getEwmaLatency();
+      latencyTargets++;
+    }
+    failedTotal += ssc.currentFailedPCT();
+  }
+
+  /**
+   * Formats the averages, called once after every target has been added.
+   */
+  FamilyStats finish() {
+    current_latency = String.format("%.4f", latencyTargets == 0 ? 0.0 : latencyTotal/latencyTargets);
+    current_failed = String.format("%.4f", targets == 0 ? 0.0 : failedTotal/targets);
+    ewma_latency = String.format("%.4f", latencyTargets == 0 ? 0.0 : ewmaLatencyTotal/latencyTargets);
+    return this;
+  }
+
+  public int getTargets() {
+    return targets;
+  }
+
+  public int getUp() {
+    return up;
+  }
+
+  public String getCurrent_latency() {
+    return current_latency;
+  }
+
+  public String getCurrent_failed() {
+    return current_failed;
+  }
+
+  public String getEwma_latency() {
+    return ewma_latency;
+  }
+}
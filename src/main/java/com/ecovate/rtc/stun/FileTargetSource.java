@@ -0,0 +1,135 @@
+package com.ecovate.rtc.stun;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SchedulerService;
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * {@link TargetSource} for stun servers listed in a file, one per line (host, host:port or
+ * [ipv6]:port, lines starting with # are ignored).  The file is watched with a 
+ * {@link WatchService} and only the servers that were added or removed are passed on when it
+ * changes.
+ */
+public class FileTargetSource extends ResolvingTargetSource {
+  private static final Logger log = LoggerFactory.getLogger(FileTargetSource.class);
+  private static final long WATCH_INTERVAL = 1000;
+
+  private final Runnable watchRunner = ()->checkWatch();
+  private final Path file;
+  private WatchService watchService;
+
+  public FileTargetSource(File file, SubmitterScheduler scheduler, long refreshInterval) {
+    super(scheduler, refreshInterval);
+    this.file = file.toPath().toAbsolutePath();
+  }
+
+  public FileTargetSource(File file, SubmitterScheduler scheduler) {
+    this(file, scheduler, DEFAULT_REFRESH_INTERVAL);
+  }
+
+  @Override
+  protected void startupSource() {
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      file.getParent().register(watchService, 
+          StandardWatchEventKinds.ENTRY_CREATE, 
+          StandardWatchEventKinds.ENTRY_MODIFY, 
+          StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (IOException e) {
+      log.error("Problem watching target file:{}\n{}", file, ExceptionUtils.stackToString(e));
+    }
+    reload();
+    scheduler.scheduleWithFixedDelay(watchRunner, WATCH_INTERVAL, WATCH_INTERVAL);
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    if(scheduler instanceof SchedulerService) {
+      ((SchedulerService)scheduler).remove(watchRunner);
+    }
+    if(watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        log.warn("Problem closing watch service for:{}", file);
+      }
+    }
+  }
+
+  private void checkWatch() {
+    if(watchService == null) {
+      return;
+    }
+    WatchKey key = watchService.poll();
+    boolean changed = false;
+    while(key != null) {
+      for(WatchEvent<?> event: key.pollEvents()) {
+        if(event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+          changed = true;
+        }
+      }
+      key.reset();
+      key = watchService.poll();
+    }
+    if(changed) {
+      reload();
+    }
+  }
+
+  /**
+   * Rereads the file adding any new servers and removing any that are gone.
+   */
+  synchronized void reload() {
+    Set<InetSocketAddress> current = new HashSet<>();
+    if(Files.exists(file)) {
+      try {
+        for(String line: Files.readAllLines(file, StandardCharsets.UTF_8)) {
+          line = line.trim();
+          if(line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          try {
+            current.add(parseServer(line));
+          } catch(IllegalArgumentException e) {
+            log.warn("Ignoring bad server line in {}:{}", file, line);
+          }
+        }
+      } catch (IOException e) {
+        log.error("Problem reading target file:{}\n{}", file, ExceptionUtils.stackToString(e));
+        return;
+      }
+    }
+    int added = 0;
+    int removed = 0;
+    for(InetSocketAddress server: getServers().toArray(new InetSocketAddress[0])) {
+      if(!current.contains(server) && removeServer(server)) {
+        removed++;
+      }
+    }
+    for(InetSocketAddress server: current) {
+      if(addServer(server)) {
+        added++;
+      }
+    }
+    if(added > 0 || removed > 0) {
+      log.info("Reloaded target file:{} added:{} removed:{}", file, added, removed);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.ecovate.rtc.stun;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring used to split targets between cluster nodes.  Each node is placed on the
+ * ring at a number of virtual points, so when a node joins or leaves only the keys next to its
+ * points move and the rest stay where they are.
+ *
+ * The hash only depends on the node and key strings, so every node builds the same ring from the
+ * same member list.
+ */
+class HashRing {
+  private final TreeMap<Long, String> points = new TreeMap<>();
+  private final TreeSet<String> nodes;
+
+  HashRing(Collection<String> nodes, int virtualNodes) {
+    this.nodes = new TreeSet<>(nodes);
+    for(String node: this.nodes) {
+      for(int i=0; i<virtualNodes; i++) {
+        points.put(hash(node+"#"+i), node);
+      }
+    }
+  }
+
+  /**
+   * @return the node that owns the key, null if the ring is empty.
+   */
+  String owner(String key) {
+    if(points.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> e = points.ceilingEntry(hash(key));
+    return e == null ? points.firstEntry().getValue() : e.getValue();
+  }
+
+  Collection<String> getNodes() {
+    return Collections.unmodifiableSet(nodes);
+  }
+
+  /**
+   * 64 bit FNV-1a with a final mix so nearby strings spread over the whole ring.
+   */
+  static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for(byte b: s.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,110 @@
+package com.ecovate.rtc.stun;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thresholds used by {@link HealthTracker} to decide when a target should be tripped to
+ * {@link HealthTracker.State#DOWN} and when it is allowed to recover.
+ */
+public class HealthConfig {
+  public static final int DEFAULT_TRIP_FAILURES = 3;
+  public static final double DEFAULT_ALPHA = 0.3;
+  public static final long DEFAULT_HOLD_DOWN = 30000;
+
+  private final int tripFailures;
+  private final double alpha;
+  private final double tripLatency;
+  private final double recoverLatency;
+  private final double tripLoss;
+  private final double recoverLoss;
+  private final long holdDown;
+  private final List<WindowRule> windowRules;
+  private final long maxPipelineLag;
+
+  /**
+   * @param tripFailures number of timeouts in a row that will trip the target right away.
+   * @param alpha the weight (0.0-1.0) given to each new sample in the EWMA latency and loss.
+   * @param tripLatency EWMA latency in millis above which the target is tripped.
+   * @param recoverLatency EWMA latency in millis the target must get back under to recover.
+   * @param tripLoss EWMA loss (0.0-1.0) above which the target is tripped.
+   * @param recoverLoss EWMA loss (0.0-1.0) the target must get back under to recover.
+   * @param holdDown minimum time in millis a target stays down once tripped.
+   * @param windowRules rules checked against the targets {@link ProbeWindows} along with the EWMA thresholds.
+   * @param maxPipelineLag lag in millis of any {@link PipelineStats} stage above which measurements are flagged untrustworthy.
+   */
+  public HealthConfig(int tripFailures, double alpha, double tripLatency, double recoverLatency,
+      double tripLoss, double recoverLoss, long holdDown, List<WindowRule> windowRules, long maxPipelineLag) {
+    this.tripFailures = Math.max(1, tripFailures);
+    this.alpha = Math.min(1.0, Math.max(0.01, alpha));
+    this.tripLatency = Math.max(20, tripLatency);
+    this.recoverLatency = Math.min(this.tripLatency, Math.max(1, recoverLatency));
+    this.tripLoss = Math.min(1.0, Math.max(0.0, tripLoss));
+    this.recoverLoss = Math.min(this.tripLoss, Math.max(0.0, recoverLoss));
+    this.holdDown = Math.max(0, holdDown);
+    this.windowRules = Collections.unmodifiableList(new ArrayList<>(windowRules));
+    this.maxPipelineLag = Math.max(1, maxPipelineLag);
+  }
+
+  public HealthConfig(int tripFailures, double alpha, double tripLatency, double recoverLatency,
+      double tripLoss, double recoverLoss, long holdDown, List<WindowRule> windowRules) {
+    this(tripFailures, alpha, tripLatency, recoverLatency, tripLoss, recoverLoss, holdDown, windowRules, 
+        PipelineStats.DEFAULT_MAX_LAG);
+  }
+
+  public HealthConfig(int tripFailures, double alpha, double tripLatency, double recoverLatency,
+      double tripLoss, double recoverLoss, long holdDown) {
+    this(tripFailures, alpha, tripLatency, recoverLatency, tripLoss, recoverLoss, holdDown, Collections.emptyList());
+  }
+
+  /**
+   * Creates a config with the defaults using the given trip thresholds, recovery thresholds
+   * are set to 80% of latency and 50% of loss.
+   */
+  public HealthConfig(double tripLatency, double tripLoss) {
+    this(DEFAULT_TRIP_FAILURES, DEFAULT_ALPHA, tripLatency, tripLatency*.8, tripLoss, tripLoss/2, DEFAULT_HOLD_DOWN);
+  }
+
+  public int getTripFailures() {
+    return tripFailures;
+  }
+
+  public double getAlpha() {
+    return alpha;
+  }
+
+  public double getTripLatency() {
+    return tripLatency;
+  }
+
+  public double getRecoverLatency() {
+    return recoverLatency;
+  }
+
+  public double getTripLoss() {
+    return tripLoss;
+  }
+
+  public double getRecoverLoss() {
+    return recoverLoss;
+  }
+
+  public long getHoldDown() {
+    return holdDown;
+  }
+
+  public List<WindowRule> getWindowRules() {
+    return windowRules;
+  }
+
+  public long getMaxPipelineLag() {
+    return maxPipelineLag;
+  }
+
+  @Override
+  public String toString() {
+    return "HealthConfig:tripFailures="+tripFailures+",alpha="+alpha+",tripLatency="+tripLatency+
+        ",recoverLatency="+recoverLatency+",tripLoss="+tripLoss+",recoverLoss="+recoverLoss+",holdDown="+holdDown+",windowRules="+windowRules+",maxPipelineLag="+maxPipelineLag;
+  }
+}
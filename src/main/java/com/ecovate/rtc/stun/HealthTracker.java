@@ -0,0 +1,220 @@
+package com.ecovate.rtc.stun;
+
+import io.prometheus.client.Histogram;
+
+/**
+ * Per target health state machine.  Each finished probe is fed in through
+ * {@link #onProbe(long, long, long)} which updates the EWMA latency/loss and decides if the
+ * target should change state.
+ *
+ * A target is tripped {@link State#DOWN} when it hits the configured number of consecutive
+ * timeouts or when the EWMA latency or loss goes over the trip thresholds.  A single timeout
+ * moves the EWMA loss by the whole alpha, so the loss threshold also needs enough timeouts in
+ * the last {@link #lossWindow} probes to be over the trip loss, and never less than 2, which
+ * keeps stray timeouts from tripping a target.  It only goes back
+ * {@link State#UP} once the hold down time has passed and the EWMA figures are back under the
+ * (lower) recover thresholds, which keeps a target from flapping around a single threshold.
+ * Any {@link WindowRule}s in the config are checked the same way against the targets
+ * {@link ProbeWindows}.
+ */
+public class HealthTracker {
+
+  private static final Histogram detectTime = Histogram.build()
+      .name("stun_health_detect_seconds")
+      .help("Time in seconds from the first bad probe to the target being marked down.")
+      .exponentialBuckets(.5, 2, 10)
+      .labelNames("ip")
+      .register();
+
+  private static final Histogram recoverTime = Histogram.build()
+      .name("stun_health_recover_seconds")
+      .help("Time in seconds from the first good probe to the target being marked up again.")
+      .exponentialBuckets(.5, 2, 12)
+      .labelNames("ip")
+      .register();
+
+  public enum State { UP, DOWN }
+
+  private final HealthConfig config;
+  private final String name;
+  private final int lossWindow;
+  private final int lossFailures;
+  private long recentFailures = 0;
+  private State state = State.UP;
+  private double ewmaLatency = -1;
+  private double ewmaLoss = 0;
+  private int consecutiveFailures = 0;
+  private long stateChangeTime = -1;
+  private long badSince = -1;
+  private long goodSince = -1;
+  private long lastDetectTime = -1;
+  private long lastRecoverTime = -1;
+
+  public HealthTracker(HealthConfig config, String name) {
+    this.config = config;
+    this.name = name;
+    this.lossWindow = (int)Math.min(64, Math.ceil(config.getTripFailures()/Math.max(.001, config.getTripLoss())));
+    this.lossFailures = Math.max(2, (int)(config.getTripLoss()*lossWindow)+1);
+  }
+
+  /**
+   * Feeds a finished probe into the state machine.
+   *
+   * @param startTime the time in millis the probe was sent.
+   * @param rtt the round trip time in millis or -1 if the probe timed out.
+   * @param now the current time in millis.
+   * @return true if this probe caused the target to change {@link State}.
+   */
+  public boolean onProbe(long startTime, long rtt, long now) {
+    return onProbe(startTime, rtt, now, null);
+  }
+
+  /**
+   * Feeds a finished probe into the state machine, the probe should already be recorded in the windows.
+   *
+   * @param windows the targets windows to check the {@link WindowRule}s against, null to skip them.
+   * @return true if this probe caused the target to change {@link State}.
+   */
+  public synchronized boolean onProbe(long startTime, long rtt, long now, ProbeWindows windows) {
+    final double alpha = config.getAlpha();
+    recentFailures = (recentFailures << 1) | (rtt < 0 ? 1 : 0);
+    if(rtt >= 0) {
+      ewmaLatency = ewmaLatency < 0 ? rtt : (alpha*rtt) + ((1-alpha)*ewmaLatency);
+      ewmaLoss = (1-alpha)*ewmaLoss;
+      consecutiveFailures = 0;
+    } else {
+      ewmaLoss = alpha + ((1-alpha)*ewmaLoss);
+      consecutiveFailures++;
+    }
+    if(state == State.UP) {
+      if(rtt < 0 || rtt > config.getTripLatency()) {
+        if(badSince < 0) {
+          badSince = startTime;
+        }
+      } else {
+        badSince = -1;
+      }
+      if(consecutiveFailures >= config.getTripFailures() ||
+          ewmaLatency > config.getTripLatency() ||
+          (ewmaLoss > config.getTripLoss() && lossBacked()) ||
+          windowRuleTripped(windows)) {
+        state = State.DOWN;
+        stateChangeTime = now;
+        lastDetectTime = badSince < 0 ? 0 : Math.max(0, now - badSince);
+        detectTime.labels(name).observe(lastDetectTime/1000.0);
+        goodSince = -1;
+        return true;
+      }
+    } else {
+      if(rtt < 0 || rtt > config.getRecoverLatency()) {
+        goodSince = -1;
+      } else if(goodSince < 0) {
+        goodSince = startTime;
+      }
+      if(now - stateChangeTime >= config.getHoldDown() &&
+          consecutiveFailures == 0 &&
+          ewmaLatency <= config.getRecoverLatency() &&
+          ewmaLoss <= config.getRecoverLoss() &&
+          windowRulesRecovered(windows)) {
+        state = State.UP;
+        stateChangeTime = now;
+        lastRecoverTime = goodSince < 0 ? 0 : Math.max(0, now - goodSince);
+        recoverTime.labels(name).observe(lastRecoverTime/1000.0);
+        badSince = -1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if there are enough timeouts in the recent probes to trust the EWMA loss.
+   */
+  private boolean lossBacked() {
+    long mask = lossWindow == 64 ? -1L : (1L << lossWindow)-1;
+    return Long.bitCount(recentFailures & mask) >= lossFailures;
+  }
+
+  private boolean windowRuleTripped(ProbeWindows windows) {
+    if(windows != null) {
+      for(WindowRule rule: config.getWindowRules()) {
+        if(rule.trips(windows.current(rule.getWindow()))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean windowRulesRecovered(ProbeWindows windows) {
+    if(windows != null) {
+      for(WindowRule rule: config.getWindowRules()) {
+        if(!rule.recovered(windows.current(rule.getWindow()))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Restores the state from a previous run.
+   */
+  public synchronized void restore(State state, double ewmaLatency, double ewmaLoss, int consecutiveFailures, long stateChangeTime) {
+    this.state = state;
+    this.ewmaLatency = ewmaLatency;
+    this.ewmaLoss = ewmaLoss;
+    this.consecutiveFailures = consecutiveFailures;
+    this.stateChangeTime = stateChangeTime;
+    this.badSince = -1;
+    this.goodSince = -1;
+  }
+
+  /**
+   * @return the raw EWMA latency, -1 if there has not been a successful probe yet.
+   */
+  synchronized double getRawEwmaLatency() {
+    return ewmaLatency;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized boolean isUp() {
+    return state == State.UP;
+  }
+
+  public synchronized double getEwmaLatency() {
+    return Math.max(0, ewmaLatency);
+  }
+
+  public synchronized double getEwmaLoss() {
+    return ewmaLoss;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return the time in millis of the last state change or -1 if it has never changed.
+   */
+  public synchronized long getStateChangeTime() {
+    return stateChangeTime;
+  }
+
+  /**
+   * @return millis it took to detect the last failure or -1 if the target has never been tripped.
+   */
+  public synchronized long getLastDetectTime() {
+    return lastDetectTime;
+  }
+
+  /**
+   * @return millis it took to recover from the last failure or -1 if the target has never recovered.
+   */
+  public synchronized long getLastRecoverTime() {
+    return lastRecoverTime;
+  }
+}
@@ -0,0 +1,125 @@
+package com.ecovate.rtc.stun;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/**
+ * Measures how far behind stuncheck itself is at each stage of a probe, so a latency spike can
+ * be told apart from a busy scheduler or socket executer.  Each lag is exported in the
+ * stun_pipeline_lag_seconds histogram and the highest lag of each stage over the last 5-10
+ * seconds is kept to decide if the current measurements can be trusted.  The highest lag since 
+ * {@link #resetPeak()} is kept as well, for measuring over a fixed window.
+ *
+ * Observing a lag is a histogram bucket increment and a compare-and-set, so it is cheap enough to
+ * do for every probe.
+ */
+public class PipelineStats {
+  public static final long DEFAULT_MAX_LAG = 50;
+  private static final long ROTATE_INTERVAL = 5000;
+
+  public enum Stage {
+    /** From the time a round of checks was due to each request being sent. */
+    SCHEDULE,
+    /** From writing a request to the socket executer to it being sent. */
+    WRITE,
+    /** From a task being handed to the socket executer's scheduler to it running, which is what delays reads. */
+    READ_DISPATCH,
+    /** From a response being read, or a timeout being due, to the probe being recorded. */
+    COMPLETION
+  }
+
+  private static final Histogram lag = Histogram.build()
+      .name("stun_pipeline_lag_seconds")
+      .help("Time in seconds stuncheck itself added at each stage of a probe.")
+      .buckets(.0001, .0005, .001, .005, .01, .025, .05, .1, .25, .5, 1, 2.5)
+      .labelNames("stage")
+      .register();
+  private static final Gauge untrustworthy = Gauge.build()
+      .name("stun_pipeline_untrustworthy")
+      .help("1 while a pipeline stage is lagging enough that probe latencies can not be trusted.")
+      .register();
+  private static final Histogram.Child[] CHILDREN = new Histogram.Child[Stage.values().length];
+  private static final AtomicLongArray current = new AtomicLongArray(Stage.values().length);
+  private static final AtomicLongArray previous = new AtomicLongArray(Stage.values().length);
+  private static final AtomicLongArray peak = new AtomicLongArray(Stage.values().length);
+  private static volatile long lastRotate = -1;
+
+  static {
+    for(Stage stage: Stage.values()) {
+      CHILDREN[stage.ordinal()] = lag.labels(stage.name().toLowerCase());
+    }
+  }
+
+  private PipelineStats() {}
+
+  /**
+   * Records the lag of a stage.
+   */
+  public static void observe(Stage stage, long nanos) {
+    if(nanos < 0) {
+      nanos = 0;
+    }
+    CHILDREN[stage.ordinal()].observe(nanos/1000000000.0);
+    int i = stage.ordinal();
+    raise(current, i, nanos);
+    raise(peak, i, nanos);
+  }
+
+  private static void raise(AtomicLongArray maxes, int i, long nanos) {
+    long max = maxes.get(i);
+    while(nanos > max && !maxes.compareAndSet(i, max, nanos)) {
+      max = maxes.get(i);
+    }
+  }
+
+  public static void observeMillis(Stage stage, long millis) {
+    observe(stage, millis*1000000);
+  }
+
+  /**
+   * @return the highest lag in nanos of the stage over the last 5-10 seconds.
+   */
+  public static long recentMax(Stage stage) {
+    return Math.max(current.get(stage.ordinal()), previous.get(stage.ordinal()));
+  }
+
+  /**
+   * @return the highest lag in nanos of the stage since the last {@link #resetPeak()}.
+   */
+  public static long peak(Stage stage) {
+    return peak.get(stage.ordinal());
+  }
+
+  /**
+   * Starts tracking the peak lags over a new window, ie a benchmark measurement.
+   */
+  public static void resetPeak() {
+    for(int i=0; i<peak.length(); i++) {
+      peak.set(i, 0);
+    }
+  }
+
+  /**
+   * Ages out old lags, this should be called every second or so.
+   *
+   * @param now the current forward progressing time in millis.
+   * @param maxLag the lag in millis above which measurements are not trusted.
+   * @return true if any stage had a lag over maxLag in the last 5-10 seconds.
+   */
+  public static boolean update(long now, long maxLag) {
+    if(lastRotate < 0 || now < lastRotate || now-lastRotate >= ROTATE_INTERVAL) {
+      lastRotate = now;
+      for(int i=0; i<current.length(); i++) {
+        previous.set(i, current.getAndSet(i, 0));
+      }
+    }
+    boolean lagging = false;
+    for(Stage stage: Stage.values()) {
+      lagging |= recentMax(stage) > maxLag*1000000;
+    }
+    untrustworthy.set(lagging ? 1 : 0);
+    return lagging;
+  }
+}
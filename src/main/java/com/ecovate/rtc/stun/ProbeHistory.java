@@ -0,0 +1,300 @@
+package com.ecovate.rtc.stun;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SingleThreadScheduler;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Keeps a {@link ProbeLog} per target under a base directory so the results of every probe can
+ * be looked at after they have fallen out of the current stats window, or the process has been
+ * restarted.
+ *
+ * Queries work on read only views of the memory mapped segments so neither raw records nor
+ * downsampled buckets need the history to be copied onto the heap.  Only targets that are being
+ * probed have their log kept open, see {@link #close(String)}.
+ */
+public class ProbeHistory {
+  private static final Logger log = LoggerFactory.getLogger(ProbeHistory.class);
+  public static final int RECORD_SIZE = 16;
+  public static final int DEFAULT_RECORDS_PER_SEGMENT = 65536;
+  public static final int MAX_BUCKETS = 10000;
+
+  private final ConcurrentHashMap<String, ProbeLog> logs = new ConcurrentHashMap<>();
+  private final File baseDir;
+  private final long retention;
+  private final int recordsPerSegment;
+  private final Executor allocator;
+  private final SingleThreadScheduler ownedAllocator;
+  private volatile boolean closed = false;
+
+  /**
+   * @param baseDir the directory to keep each targets segment files under.
+   * @param retention how long in millis to keep records for.
+   * @param recordsPerSegment the number of records in each segment file before rolling over.
+   */
+  public ProbeHistory(File baseDir, long retention, int recordsPerSegment) throws IOException {
+    this(baseDir, retention, recordsPerSegment, null);
+  }
+
+  /**
+   * @param allocator runs the segment file creation off the probe threads, null to start a thread for it.
+   */
+  ProbeHistory(File baseDir, long retention, int recordsPerSegment, Executor allocator) throws IOException {
+    if(!baseDir.isDirectory() && !baseDir.mkdirs()) {
+      throw new IOException("Could not create history directory:"+baseDir);
+    }
+    this.baseDir = baseDir;
+    this.retention = retention;
+    this.recordsPerSegment = recordsPerSegment;
+    if(allocator == null) {
+      this.ownedAllocator = new SingleThreadScheduler(true);
+      this.allocator = ownedAllocator;
+    } else {
+      this.ownedAllocator = null;
+      this.allocator = allocator;
+    }
+  }
+
+  public ProbeHistory(File baseDir, long retention) throws IOException {
+    this(baseDir, retention, DEFAULT_RECORDS_PER_SEGMENT);
+  }
+
+  /**
+   * Appends a probe result to the targets log, this does nothing once the history is closed.
+   *
+   * @param target the target key (see {@link StunHTTP#targetKey(java.net.InetSocketAddress)}).
+   * @param time the epoch time in millis the probe finished.
+   * @param rtt the round trip time in millis or -1 if the probe timed out.
+   */
+  public void record(String target, long time, long rtt) {
+    if(closed) {
+      return;
+    }
+    try {
+      ProbeLog pl = getLog(target);
+      pl.append(time, (int)Math.min(Integer.MAX_VALUE, rtt));
+    } catch(IOException e) {
+      log.error("Problem writing history for:{}\n{}", target, ExceptionUtils.stackToString(e));
+    }
+  }
+
+  /**
+   * @return read only views over the records for the target that could be between from and to,
+   * empty if there is no history for the target.
+   */
+  public List<ByteBuffer> snapshot(String target, long from, long to) throws IOException {
+    if(from > to) {
+      return Collections.emptyList();
+    }
+    ProbeLog pl = logs.get(target);
+    if(pl == null) {
+      // targets that are not probed anymore are read without being kept open.
+      File dir = new File(baseDir, dirName(target));
+      if(!dir.isDirectory()) {
+        return Collections.emptyList();
+      }
+      pl = new ProbeLog(dir, recordsPerSegment, null);
+    }
+    return pl.snapshot(from, to);
+  }
+
+  /**
+   * Deletes any segments that only have records older than the retention time, including the
+   * history of targets that are no longer probed or were left from before a restart.
+   */
+  public void cleanup(long now) {
+    final long cutoff = now-retention;
+    int deleted = 0;
+    HashSet<String> open = new HashSet<>();
+    for(Map.Entry<String, ProbeLog> e: logs.entrySet()) {
+      open.add(dirName(e.getKey()));
+      deleted += e.getValue().deleteBefore(cutoff);
+    }
+    File[] dirs = baseDir.listFiles();
+    if(dirs != null) {
+      for(File dir: dirs) {
+        if(dir.isDirectory() && !open.contains(dir.getName())) {
+          synchronized(logs) {
+            // the target may have been started since the scan began.
+            if(!logsOpenFor(dir.getName())) {
+              deleted += ProbeLog.deleteBefore(dir, cutoff, recordsPerSegment);
+            }
+          }
+        }
+      }
+    }
+    if(deleted > 0) {
+      log.info("Removed {} expired history segments", deleted);
+    }
+  }
+
+  /**
+   * Closes the log of a target that is no longer probed, its history stays on disk until it
+   * passes the retention time.
+   */
+  public void close(String target) {
+    ProbeLog pl;
+    synchronized(logs) {
+      pl = logs.remove(target);
+    }
+    if(pl != null) {
+      pl.close();
+    }
+  }
+
+  public void close() {
+    closed = true;
+    for(ProbeLog pl: logs.values()) {
+      pl.close();
+    }
+    logs.clear();
+    if(ownedAllocator != null) {
+      ownedAllocator.shutdown();
+    }
+  }
+
+  private boolean logsOpenFor(String dirName) {
+    for(String target: logs.keySet()) {
+      if(dirName(target).equals(dirName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String dirName(String target) {
+    return target.replaceAll("[^A-Za-z0-9.\\-]", "_");
+  }
+
+  private ProbeLog getLog(String target) throws IOException {
+    ProbeLog pl = logs.get(target);
+    if(pl != null) {
+      return pl;
+    }
+    synchronized(logs) {
+      pl = logs.get(target);
+      if(pl == null) {
+        pl = new ProbeLog(new File(baseDir, dirName(target)), recordsPerSegment, allocator);
+        logs.put(target, pl);
+      }
+      return pl;
+    }
+  }
+
+  /**
+   * Finds the runs of records between from and to (inclusive) in the views, the returned buffers
+   * are slices of the views so no record data is copied.
+   */
+  public static List<ByteBuffer> matchingRecords(List<ByteBuffer> views, long from, long to) {
+    ArrayList<ByteBuffer> runs = new ArrayList<>();
+    for(ByteBuffer view: views) {
+      int records = view.limit()/RECORD_SIZE;
+      int runStart = -1;
+      for(int i=0; i<=records; i++) {
+        boolean match = false;
+        if(i < records) {
+          long time = view.getLong(i*RECORD_SIZE);
+          match = time >= from && time <= to;
+        }
+        if(match && runStart < 0) {
+          runStart = i;
+        } else if(!match && runStart >= 0) {
+          ByteBuffer bb = view.duplicate();
+          bb.position(runStart*RECORD_SIZE);
+          bb.limit(i*RECORD_SIZE);
+          runs.add(bb.slice());
+          runStart = -1;
+        }
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Downsamples the records between from and to into buckets step millis wide.
+   */
+  public static List<HistoryBucket> downsample(List<ByteBuffer> views, long from, long to, long step) {
+    int count = (int)Math.min(MAX_BUCKETS, ((to-from)/step)+1);
+    long[] requests = new long[count];
+    long[] failed = new long[count];
+    long[] latency = new long[count];
+    long[] maxLatency = new long[count];
+    for(ByteBuffer view: views) {
+      int records = view.limit()/RECORD_SIZE;
+      for(int i=0; i<records; i++) {
+        long time = view.getLong(i*RECORD_SIZE);
+        if(time < from || time > to) {
+          continue;
+        }
+        int b = (int)((time-from)/step);
+        if(b >= count) {
+          continue;
+        }
+        int rtt = view.getInt((i*RECORD_SIZE)+8);
+        requests[b]++;
+        if(rtt < 0) {
+          failed[b]++;
+        } else {
+          latency[b] += rtt;
+          maxLatency[b] = Math.max(maxLatency[b], rtt);
+        }
+      }
+    }
+    ArrayList<HistoryBucket> buckets = new ArrayList<>(count);
+    for(int i=0; i<count; i++) {
+      if(requests[i] > 0) {
+        buckets.add(new HistoryBucket(from+(i*step), requests[i], failed[i], latency[i], maxLatency[i]));
+      }
+    }
+    return buckets;
+  }
+
+  public static class HistoryBucket {
+    private final long time;
+    private final long requests;
+    private final long failed;
+    private final String latency_avg;
+    private final long latency_max;
+
+    HistoryBucket(long time, long requests, long failed, long latencyTotal, long latencyMax) {
+      this.time = time;
+      this.requests = requests;
+      this.failed = failed;
+      long completed = requests-failed;
+      this.latency_avg = String.format("%.4f", completed == 0 ? 0.0 : latencyTotal/(double)completed);
+      this.latency_max = latencyMax;
+    }
+
+    public long getTime() {
+      return time;
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    public long getFailed() {
+      return failed;
+    }
+
+    public String getLatency_avg() {
+      return latency_avg;
+    }
+
+    public long getLatency_max() {
+      return latency_max;
+    }
+  }
+}
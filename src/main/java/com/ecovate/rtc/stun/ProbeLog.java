@@ -0,0 +1,317 @@
+package com.ecovate.rtc.stun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only log of probe results for a single target.  Records are fixed size and written
+ * into memory mapped segment files, named for the time of their first record, that are rolled
+ * over once full.
+ *
+ * The next segment is created and mapped on the allocator ahead of time, once the active one is
+ * half full, so rolling over is just a rename on the thread that appends.
+ *
+ * Each record is {@link ProbeHistory#RECORD_SIZE} bytes, big endian:
+ * <ul>
+ *   <li>long: epoch time in millis the probe finished</li>
+ *   <li>int: round trip time in millis, -1 if the probe timed out</li>
+ *   <li>int: reserved, always 0</li>
+ * </ul>
+ */
+class ProbeLog {
+  private static final Logger log = LoggerFactory.getLogger(ProbeLog.class);
+  static final String SEGMENT_SUFFIX = ".seg";
+  static final String NEXT_SEGMENT = "next.tmp";
+
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private final File dir;
+  private final int recordsPerSegment;
+  private final Executor allocator;
+  private Segment active;
+  private MappedByteBuffer next;
+  private boolean preparing = false;
+  private boolean closed = false;
+
+  /**
+   * @param allocator runs the I/O to create the next segment, null to open the log read only.
+   */
+  ProbeLog(File dir, int recordsPerSegment, Executor allocator) throws IOException {
+    this.dir = dir;
+    this.recordsPerSegment = recordsPerSegment;
+    this.allocator = allocator;
+    if(allocator != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create history directory:"+dir);
+    }
+    for(Map.Entry<Long, File> e: segmentFiles(dir).entrySet()) {
+      segments.put(e.getKey(), new Segment(e.getValue(), e.getKey(), countRecords(e.getValue(), recordsPerSegment)));
+    }
+    if(allocator != null && !segments.isEmpty()) {
+      Segment last = segments.lastEntry().getValue();
+      if(last.count < recordsPerSegment) {
+        last.mapWritable(recordsPerSegment);
+        active = last;
+      }
+    }
+  }
+
+  synchronized void append(long time, int rtt) throws IOException {
+    if(active == null || active.count >= recordsPerSegment) {
+      roll(time);
+    }
+    int pos = active.count*ProbeHistory.RECORD_SIZE;
+    active.buffer.putLong(pos, time);
+    active.buffer.putInt(pos+8, rtt);
+    active.buffer.putInt(pos+12, 0);
+    active.count++;
+    if(next == null && !preparing && active.count >= recordsPerSegment/2) {
+      preparing = true;
+      allocator.execute(()->prepareNext());
+    }
+  }
+
+  private void prepareNext() {
+    MappedByteBuffer mbb = null;
+    try {
+      mbb = mapWritable(new File(dir, NEXT_SEGMENT), recordsPerSegment, true);
+    } catch(IOException e) {
+      log.warn("Problem creating the next history segment in:{}:{}", dir, e.toString());
+    }
+    synchronized(this) {
+      preparing = false;
+      if(!closed) {
+        next = mbb;
+      }
+    }
+  }
+
+  private void roll(long time) throws IOException {
+    long start = time;
+    if(active != null && start <= active.start) {
+      start = active.start+1;
+    }
+    while(segments.containsKey(start)) {
+      start++;
+    }
+    Segment seg = new Segment(new File(dir, start+SEGMENT_SUFFIX), start, 0);
+    if(next != null && new File(dir, NEXT_SEGMENT).renameTo(seg.file)) {
+      seg.buffer = next;
+    } else {
+      seg.mapWritable(recordsPerSegment);
+    }
+    next = null;
+    segments.put(start, seg);
+    if(active != null) {
+      active.buffer = null;
+    }
+    active = seg;
+  }
+
+  /**
+   * Returns read only views of the records in every segment that could have records between
+   * from and to.  The views are taken at the time of the call so records appended after it are
+   * not included.
+   */
+  synchronized List<ByteBuffer> snapshot(long from, long to) throws IOException {
+    ArrayList<ByteBuffer> views = new ArrayList<>();
+    Long first = segments.floorKey(from);
+    Map<Long, Segment> range = segments.subMap(first == null ? from : first, true, to, true);
+    for(Segment seg: range.values()) {
+      if(seg.count > 0) {
+        views.add(seg.view());
+      }
+    }
+    return views;
+  }
+
+  /**
+   * Deletes every segment that only has records older than the cutoff.
+   *
+   * @return the number of segments that were deleted.
+   */
+  synchronized int deleteBefore(long cutoff) {
+    int deleted = 0;
+    Iterator<Map.Entry<Long, Segment>> it = segments.entrySet().iterator();
+    while(it.hasNext()) {
+      Map.Entry<Long, Segment> e = it.next();
+      Long next = segments.higherKey(e.getKey());
+      if(e.getValue() == active || next == null || next > cutoff) {
+        break;
+      }
+      if(!e.getValue().file.delete()) {
+        log.warn("Could not delete history segment:{}", e.getValue().file);
+      }
+      it.remove();
+      deleted++;
+    }
+    return deleted;
+  }
+
+  synchronized boolean isEmpty() {
+    return segments.isEmpty();
+  }
+
+  /**
+   * Drops the logs mappings, they are unmapped once no views of them are left.
+   */
+  synchronized void close() {
+    closed = true;
+    if(active != null) {
+      active.buffer = null;
+      active = null;
+    }
+    next = null;
+  }
+
+  /**
+   * Deletes the segments in a directory that is not open that only have records older than the
+   * cutoff, and the directory once it is empty.
+   *
+   * @return the number of segments that were deleted.
+   */
+  static int deleteBefore(File dir, long cutoff, int recordsPerSegment) {
+    int deleted = 0;
+    TreeMap<Long, File> files = segmentFiles(dir);
+    for(Map.Entry<Long, File> e: files.entrySet()) {
+      Long nextStart = files.higherKey(e.getKey());
+      long end;
+      if(nextStart != null) {
+        end = nextStart;
+      } else {
+        try {
+          end = lastTime(e.getValue(), recordsPerSegment);
+        } catch(IOException ex) {
+          log.warn("Problem reading history segment:{}:{}", e.getValue(), ex.toString());
+          break;
+        }
+      }
+      if(end > cutoff) {
+        break;
+      }
+      if(!e.getValue().delete()) {
+        log.warn("Could not delete history segment:{}", e.getValue());
+        break;
+      }
+      deleted++;
+    }
+    // a prepared segment is only used by an open log.
+    new File(dir, NEXT_SEGMENT).delete();
+    File[] left = dir.listFiles();
+    if(left != null && left.length == 0 && !dir.delete()) {
+      log.warn("Could not delete history directory:{}", dir);
+    }
+    return deleted;
+  }
+
+  private static TreeMap<Long, File> segmentFiles(File dir) {
+    TreeMap<Long, File> files = new TreeMap<>();
+    File[] list = dir.listFiles();
+    if(list != null) {
+      for(File f: list) {
+        String name = f.getName();
+        if(name.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            files.put(Long.parseLong(name.substring(0, name.length()-SEGMENT_SUFFIX.length())), f);
+          } catch(NumberFormatException e) {
+            log.warn("Ignoring unknown file in history directory:{}", f);
+          }
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return the time of the last record in the segment, or its start if it is empty.
+   */
+  private static long lastTime(File f, int recordsPerSegment) throws IOException {
+    int count = countRecords(f, recordsPerSegment);
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      if(count == 0) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(0, name.length()-SEGMENT_SUFFIX.length()));
+      }
+      raf.seek((count-1)*(long)ProbeHistory.RECORD_SIZE);
+      return raf.readLong();
+    }
+  }
+
+  private static MappedByteBuffer mapWritable(File file, int records, boolean fresh) throws IOException {
+    if(fresh && file.exists() && !file.delete()) {
+      throw new IOException("Could not replace:"+file);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel fc = raf.getChannel()) {
+      long size = records*(long)ProbeHistory.RECORD_SIZE;
+      if(raf.length() < size) {
+        raf.setLength(size);
+      }
+      return fc.map(MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private static int countRecords(File f, int recordsPerSegment) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel fc = raf.getChannel()) {
+      int max = (int)Math.min(fc.size()/ProbeHistory.RECORD_SIZE, recordsPerSegment);
+      if(max == 0) {
+        return 0;
+      }
+      MappedByteBuffer mbb = fc.map(MapMode.READ_ONLY, 0, max*(long)ProbeHistory.RECORD_SIZE);
+      // records are written in order and the file starts zero filled so the first record with
+      // a time of 0 marks the end.
+      int low = 0;
+      int high = max;
+      while(low < high) {
+        int mid = (low+high) >>> 1;
+        if(mbb.getLong(mid*ProbeHistory.RECORD_SIZE) != 0) {
+          low = mid+1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  private static class Segment {
+    private final File file;
+    private final long start;
+    private volatile int count;
+    private volatile MappedByteBuffer buffer;
+
+    Segment(File file, long start, int count) {
+      this.file = file;
+      this.start = start;
+      this.count = count;
+    }
+
+    void mapWritable(int records) throws IOException {
+      buffer = ProbeLog.mapWritable(file, records, false);
+    }
+
+    ByteBuffer view() throws IOException {
+      int size = count*ProbeHistory.RECORD_SIZE;
+      MappedByteBuffer mbb = buffer;
+      if(mbb != null) {
+        ByteBuffer bb = mbb.duplicate();
+        bb.position(0).limit(size);
+        return bb.slice().asReadOnlyBuffer();
+      }
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+        return fc.map(MapMode.READ_ONLY, 0, size);
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package com.ecovate.rtc.stun;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time based stats for a single target at several resolutions, alongside the last N probes kept
+ * by {@link SimpleStunClient}.  Probes are counted in 1 second, 1 minute and 1 hour buckets, each
+ * held in a fixed size ring of primitive counters and latency histogram bins, so the memory used
+ * per target never grows no matter how long it is probed for.
+ *
+ * Each probe is added to the current bucket of every resolution as it finishes rather than rolling
+ * the finer buckets up later, which gives the same totals without needing a roll up task.
+ */
+public class ProbeWindows {
+  /**
+   * Upper bound in millis of each latency histogram bin, anything slower is in a final overflow bin.
+   */
+  public static final long[] LATENCY_BOUNDS = {5, 10, 20, 50, 100, 200, 500, 1000};
+  private static final int BINS = LATENCY_BOUNDS.length+1;
+  private static final Map<String, Window> WINDOWS;
+
+  static {
+    LinkedHashMap<String, Window> windows = new LinkedHashMap<>();
+    windows.put("1m", new Window(0, 60));
+    windows.put("5m", new Window(1, 5));
+    windows.put("1h", new Window(1, 60));
+    windows.put("1d", new Window(2, 24));
+    WINDOWS = Collections.unmodifiableMap(windows);
+  }
+
+  private final Ring[] rings = new Ring[] {new Ring(1000, 60), new Ring(60000, 60), new Ring(3600000, 24)};
+  private long lastTime = -1;
+
+  /**
+   * @return true if the name is one of the {@link #getWindows()}.
+   */
+  public static boolean isWindow(String name) {
+    return WINDOWS.containsKey(name);
+  }
+
+  /**
+   * @return the names of the windows kept for every target, ordered shortest first.
+   */
+  public static Iterable<String> getWindows() {
+    return WINDOWS.keySet();
+  }
+
+  /**
+   * Counts a finished probe.
+   *
+   * @param time the epoch time in millis the probe finished.
+   * @param rtt the round trip time in millis or -1 if the probe timed out.
+   */
+  public synchronized void record(long time, long rtt) {
+    int bin = -1;
+    if(rtt >= 0) {
+      bin = Arrays.binarySearch(LATENCY_BOUNDS, rtt);
+      if(bin < 0) {
+        bin = -bin-1;
+      }
+    }
+    for(Ring ring: rings) {
+      ring.add(time, rtt, bin);
+    }
+    lastTime = Math.max(lastTime, time);
+  }
+
+  /**
+   * @return the stats for the window as of the given epoch time in millis.
+   */
+  public synchronized WindowStats get(String name, long now) {
+    Window w = WINDOWS.get(name);
+    if(w == null) {
+      throw new IllegalArgumentException("Unknown window:"+name);
+    }
+    return rings[w.ring].sum(now, w.buckets);
+  }
+
+  /**
+   * @return the stats for the window as of the last recorded probe.
+   */
+  public synchronized WindowStats current(String name) {
+    return get(name, Math.max(0, lastTime));
+  }
+
+  /**
+   * @return the stats for every window as of the given epoch time in millis, ordered shortest first.
+   */
+  public synchronized Map<String, WindowStats> getAll(long now) {
+    LinkedHashMap<String, WindowStats> all = new LinkedHashMap<>();
+    for(String name: WINDOWS.keySet()) {
+      all.put(name, get(name, now));
+    }
+    return all;
+  }
+
+  /**
+   * The last number of buckets of a ring that make up a window, including the current one.
+   */
+  private static class Window {
+    final int ring;
+    final int buckets;
+
+    Window(int ring, int buckets) {
+      this.ring = ring;
+      this.buckets = buckets;
+    }
+  }
+
+  private static class Ring {
+    private final long resolution;
+    private final long[] index;
+    private final int[] requests;
+    private final int[] timeouts;
+    private final long[] latency;
+    private final int[] bins;
+
+    Ring(long resolution, int size) {
+      this.resolution = resolution;
+      this.index = new long[size];
+      this.requests = new int[size];
+      this.timeouts = new int[size];
+      this.latency = new long[size];
+      this.bins = new int[size*BINS];
+      Arrays.fill(index, -1);
+    }
+
+    void add(long time, long rtt, int bin) {
+      long idx = time/resolution;
+      int slot = (int)(idx%index.length);
+      if(index[slot] != idx) {
+        if(index[slot] > idx) {
+          // Older than anything this ring still holds.
+          return;
+        }
+        index[slot] = idx;
+        requests[slot] = 0;
+        timeouts[slot] = 0;
+        latency[slot] = 0;
+        Arrays.fill(bins, slot*BINS, (slot+1)*BINS, 0);
+      }
+      requests[slot]++;
+      if(rtt < 0) {
+        timeouts[slot]++;
+      } else {
+        latency[slot] += rtt;
+        bins[(slot*BINS)+bin]++;
+      }
+    }
+
+    WindowStats sum(long now, int buckets) {
+      long current = now/resolution;
+      long r = 0;
+      long t = 0;
+      long l = 0;
+      long[] hist = new long[BINS];
+      for(int slot=0; slot<index.length; slot++) {
+        if(index[slot] > current-buckets && index[slot] <= current) {
+          r += requests[slot];
+          t += timeouts[slot];
+          l += latency[slot];
+          for(int i=0; i<BINS; i++) {
+            hist[i] += bins[(slot*BINS)+i];
+          }
+        }
+      }
+      return new WindowStats(r, t, l, hist);
+    }
+  }
+
+  /**
+   * The totals for a window, latency percentiles are the upper bound of the histogram bin they
+   * fall in.
+   */
+  public static class WindowStats {
+    private final long requests;
+    private final long timeouts;
+    private final String failed;
+    private final String latency;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final transient double latencyAvg;
+
+    WindowStats(long requests, long timeouts, long latencyTotal, long[] hist) {
+      this.requests = requests;
+      this.timeouts = timeouts;
+      long completed = requests-timeouts;
+      this.failed = String.format("%.4f", requests == 0 ? 0.0 : timeouts/(double)requests);
+      this.latencyAvg = completed == 0 ? 0.0 : latencyTotal/(double)completed;
+      this.latency = String.format("%.4f", latencyAvg);
+      this.p50 = percentile(hist, completed, .50);
+      this.p90 = percentile(hist, completed, .90);
+      this.p99 = percentile(hist, completed, .99);
+    }
+
+    private static long percentile(long[] hist, long count, double q) {
+      if(count == 0) {
+        return 0;
+      }
+      long rank = (long)Math.ceil(q*count);
+      long seen = 0;
+      for(int i=0; i<hist.length; i++) {
+        seen += hist[i];
+        if(seen >= rank) {
+          return LATENCY_BOUNDS[Math.min(i, LATENCY_BOUNDS.length-1)];
+        }
+      }
+      return LATENCY_BOUNDS[LATENCY_BOUNDS.length-1];
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    public long getTimeouts() {
+      return timeouts;
+    }
+
+    public long getCompleted() {
+      return requests-timeouts;
+    }
+
+    public double getFailed() {
+      return requests == 0 ? 0.0 : timeouts/(double)requests;
+    }
+
+    public double getLatency() {
+      return latencyAvg;
+    }
+
+    public long getP50() {
+      return p50;
+    }
+
+    public long getP90() {
+      return p90;
+    }
+
+    public long getP99() {
+      return p99;
+    }
+  }
+}
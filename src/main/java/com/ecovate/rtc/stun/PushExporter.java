@@ -0,0 +1,385 @@
+package com.ecovate.rtc.stun;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.litesockets.SingleThreadSocketExecuter;
+import org.threadly.litesockets.SocketExecuter;
+import org.threadly.litesockets.TCPClient;
+import org.threadly.litesockets.UDPClient;
+import org.threadly.litesockets.UDPServer;
+import org.threadly.util.AbstractService;
+import org.threadly.util.ExceptionUtils;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Pushes probe results to a StatsD or InfluxDB (line protocol) collector over UDP or TCP.
+ *
+ * Results are put on a bounded lock free queue as probes finish and written out every push
+ * interval, coalesced into packets of up to the packet size.  When the queue is full, or a TCP
+ * collector is not keeping up, results are dropped and counted in stun_push_records_total rather
+ * than ever holding up probing.
+ */
+public class PushExporter extends AbstractService {
+  private static final Logger log = LoggerFactory.getLogger(PushExporter.class);
+  public static final int DEFAULT_QUEUE_SIZE = 100000;
+  public static final int DEFAULT_PACKET_SIZE = 1432;
+  public static final long DEFAULT_INTERVAL = 10000;
+  public static final int MAX_TCP_BUFFER = 1024*1024;
+
+  private static final Counter records = Counter.build()
+      .name("stun_push_records_total")
+      .help("Probe results pushed to the collector, by result.")
+      .labelNames("result")
+      .register();
+  private static final Counter.Child SENT = records.labels("sent");
+  private static final Counter.Child DROPPED = records.labels("dropped");
+
+  public enum Format { STATSD, INFLUX }
+
+  public enum Protocol { UDP, TCP }
+
+  /**
+   * PROBE pushes every probe result, INTERVAL pushes a summary per target each push interval.
+   */
+  public enum Mode { PROBE, INTERVAL }
+
+  private final ConcurrentLinkedQueue<Result> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final Runnable flusher = ()->flushAndReschedule();
+  private final SubmitterScheduler scheduler;
+  private final Sink sink;
+  private final Format format;
+  private final Mode mode;
+  private final long interval;
+  private final int maxQueued;
+  private final int packetSize;
+  private SocketExecuter ownedExecuter;
+
+  /**
+   * Creates a PushExporter on its own {@link SingleThreadSocketExecuter}, which is stopped along
+   * with it.
+   * 
+   * @param collector the address of the StatsD/InfluxDB collector.
+   * @param interval the time in millis between pushes.
+   * @param packetSize the max bytes in each packet, results are never split across packets.
+   */
+  public PushExporter(InetSocketAddress collector, Protocol protocol, Format format, Mode mode,
+      long interval, int packetSize) throws IOException {
+    this(new SingleThreadSocketExecuter(), true, collector, protocol, format, mode, interval, packetSize);
+  }
+
+  /**
+   * @param se the socket executer to write to the collector on, its scheduler is also used to push.
+   * @param collector the address of the StatsD/InfluxDB collector.
+   * @param interval the time in millis between pushes.
+   * @param packetSize the max bytes in each packet, results are never split across packets.
+   */
+  public PushExporter(SocketExecuter se, InetSocketAddress collector, Protocol protocol, Format format, Mode mode,
+      long interval, int packetSize) throws IOException {
+    this(se, false, collector, protocol, format, mode, interval, packetSize);
+  }
+
+  private PushExporter(SocketExecuter se, boolean ownsExecuter, InetSocketAddress collector, Protocol protocol, 
+      Format format, Mode mode, long interval, int packetSize) throws IOException {
+    this(se.getThreadScheduler(), protocol == Protocol.TCP ? new TCPSink(se, collector) : new UDPSink(se, collector),
+        format, mode, interval, DEFAULT_QUEUE_SIZE, packetSize);
+    if(ownsExecuter) {
+      this.ownedExecuter = se;
+    }
+    log.info("Pushing {} {} results to {}:{}", format, mode, protocol, collector);
+  }
+
+  PushExporter(SubmitterScheduler scheduler, Sink sink, Format format, Mode mode, long interval, int maxQueued, int packetSize) {
+    this.scheduler = scheduler;
+    this.sink = sink;
+    this.format = format;
+    this.mode = mode;
+    this.interval = Math.max(100, interval);
+    this.maxQueued = Math.max(1, maxQueued);
+    this.packetSize = Math.max(64, packetSize);
+  }
+
+  @Override
+  protected void startupService() {
+    scheduler.schedule(flusher, interval);
+  }
+
+  @Override
+  protected void shutdownService() {
+    flush();
+    sink.close();
+    if(ownedExecuter != null && ownedExecuter.isRunning()) {
+      ownedExecuter.stop();
+    }
+  }
+
+  /**
+   * Queues a probe result to be pushed, this never blocks.
+   *
+   * @param target the target key (see {@link StunHTTP#targetKey(InetSocketAddress)}).
+   * @param time the epoch time in millis the probe finished.
+   * @param rtt the round trip time in millis or -1 if the probe timed out.
+   * @return false if the queue was full and the result was dropped.
+   */
+  public boolean offer(String target, long time, long rtt) {
+    if(queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      DROPPED.inc();
+      return false;
+    }
+    queue.add(new Result(target, time, rtt));
+    return true;
+  }
+
+  private void flushAndReschedule() {
+    try {
+      flush();
+    } catch(Exception e) {
+      log.error("Problem pushing results\n{}", ExceptionUtils.stackToString(e));
+    }
+    if(isRunning()) {
+      scheduler.schedule(flusher, interval);
+    }
+  }
+
+  /**
+   * Writes out everything queued so far.
+   */
+  synchronized void flush() {
+    Packer packer = new Packer();
+    if(mode == Mode.PROBE) {
+      Result r;
+      while((r = poll()) != null) {
+        packer.add(probeLine(r), 1);
+      }
+    } else {
+      LinkedHashMap<String, Summary> summaries = new LinkedHashMap<>();
+      Result r;
+      while((r = poll()) != null) {
+        summaries.computeIfAbsent(r.target, (k)->new Summary()).add(r);
+      }
+      for(Map.Entry<String, Summary> e: summaries.entrySet()) {
+        packer.add(intervalLine(e.getKey(), e.getValue()), e.getValue().requests);
+      }
+    }
+    packer.send();
+  }
+
+  private Result poll() {
+    Result r = queue.poll();
+    if(r != null) {
+      queued.decrementAndGet();
+    }
+    return r;
+  }
+
+  String probeLine(Result r) {
+    if(format == Format.STATSD) {
+      if(r.rtt < 0) {
+        return "stun."+statsdName(r.target)+".timeouts:1|c\n";
+      }
+      return "stun."+statsdName(r.target)+".rtt:"+r.rtt+"|ms\n";
+    }
+    if(r.rtt < 0) {
+      return "stun_probe,target="+influxTag(r.target)+" timeout=true "+(r.time*1000000)+"\n";
+    }
+    return "stun_probe,target="+influxTag(r.target)+" rtt="+r.rtt+"i,timeout=false "+(r.time*1000000)+"\n";
+  }
+
+  /**
+   * The latency gauges/fields are left out when every probe in the interval timed out, rather
+   * than reporting a latency of 0.
+   */
+  String intervalLine(String target, Summary s) {
+    boolean completed = s.requests > s.timeouts;
+    String latency = completed ? String.format("%.4f", s.latencyAvg()) : null;
+    if(format == Format.STATSD) {
+      String name = "stun."+statsdName(target);
+      String line = name+".requests:"+s.requests+"|c\n"+
+          name+".timeouts:"+s.timeouts+"|c\n";
+      if(completed) {
+        line += name+".latency:"+latency+"|g\n"+
+            name+".max_latency:"+s.maxLatency+"|g\n";
+      }
+      return line;
+    }
+    return "stun_interval,target="+influxTag(target)+" requests="+s.requests+"i,timeouts="+s.timeouts+"i"+
+        (completed ? ",latency="+latency+",max_latency="+s.maxLatency+"i" : "")+" "+(s.time*1000000)+"\n";
+  }
+
+  /**
+   * StatsD names use '.' as a separator, so the target key is flattened (ie. "10_0_0_1_3478").
+   */
+  static String statsdName(String target) {
+    return target.replaceAll("[^A-Za-z0-9\\-]+", "_").replaceAll("^_|_$", "");
+  }
+
+  static String influxTag(String target) {
+    return target.replace(",", "\\,").replace(" ", "\\ ").replace("=", "\\=");
+  }
+
+  /**
+   * Coalesces lines into packets, sending each one as the next line would not fit.
+   */
+  private class Packer {
+    private final ByteBuffer packet = ByteBuffer.allocate(packetSize);
+    private int results = 0;
+
+    void add(String line, int count) {
+      byte[] ba = line.getBytes(StandardCharsets.UTF_8);
+      if(ba.length > packet.remaining()) {
+        send();
+      }
+      if(ba.length > packet.remaining()) {
+        log.warn("Dropping result bigger than the packet size:{}", line.trim());
+        DROPPED.inc(count);
+        return;
+      }
+      packet.put(ba);
+      results += count;
+    }
+
+    void send() {
+      if(packet.position() == 0) {
+        return;
+      }
+      ByteBuffer out = ByteBuffer.allocate(packet.position());
+      packet.flip();
+      out.put(packet);
+      out.flip();
+      packet.clear();
+      if(sink.send(out)) {
+        SENT.inc(results);
+      } else {
+        DROPPED.inc(results);
+      }
+      results = 0;
+    }
+  }
+
+  static class Result {
+    final String target;
+    final long time;
+    final long rtt;
+
+    Result(String target, long time, long rtt) {
+      this.target = target;
+      this.time = time;
+      this.rtt = rtt;
+    }
+  }
+
+  static class Summary {
+    int requests;
+    int timeouts;
+    long latency;
+    long maxLatency;
+    long time;
+
+    void add(Result r) {
+      requests++;
+      if(r.rtt < 0) {
+        timeouts++;
+      } else {
+        latency += r.rtt;
+        maxLatency = Math.max(maxLatency, r.rtt);
+      }
+      time = Math.max(time, r.time);
+    }
+
+    double latencyAvg() {
+      return requests == timeouts ? 0.0 : latency/(double)(requests-timeouts);
+    }
+  }
+
+  /**
+   * Where packets are written, each call gets a single packet.
+   */
+  interface Sink {
+    /**
+     * @return false if the packet had to be dropped.
+     */
+    boolean send(ByteBuffer packet);
+
+    void close();
+  }
+
+  private static class UDPSink implements Sink {
+    private final UDPServer server;
+    private final UDPClient client;
+
+    UDPSink(SocketExecuter se, InetSocketAddress collector) throws IOException {
+      se.startIfNotStarted();
+      server = se.createUDPServer(collector.getAddress() instanceof Inet6Address ? "::" : "0.0.0.0", 0);
+      client = server.createUDPClient(collector.getAddress().getHostAddress(), collector.getPort());
+      server.start();
+    }
+
+    @Override
+    public boolean send(ByteBuffer packet) {
+      client.write(packet);
+      return true;
+    }
+
+    @Override
+    public void close() {
+      client.close();
+      server.close();
+    }
+  }
+
+  /**
+   * Keeps a connection to the collector open, reconnecting on the next push if it is closed.
+   * Packets are dropped while more than {@link #MAX_TCP_BUFFER} bytes are waiting to be written.
+   */
+  private static class TCPSink implements Sink {
+    private final SocketExecuter se;
+    private final InetSocketAddress collector;
+    private TCPClient client;
+
+    TCPSink(SocketExecuter se, InetSocketAddress collector) {
+      this.se = se;
+      this.collector = collector;
+      se.startIfNotStarted();
+    }
+
+    @Override
+    public synchronized boolean send(ByteBuffer packet) {
+      if(client == null || client.isClosed()) {
+        try {
+          client = se.createTCPClient(collector.getAddress().getHostAddress(), collector.getPort());
+          client.addCloseListener((c)->log.warn("Push connection to {} closed", collector));
+          client.connect();
+        } catch(IOException e) {
+          log.error("Problem connecting to push collector:{}\n{}", collector, ExceptionUtils.stackToString(e));
+          client = null;
+          return false;
+        }
+      }
+      if(client.getWriteBufferSize() > MAX_TCP_BUFFER) {
+        return false;
+      }
+      client.write(packet);
+      return true;
+    }
+
+    @Override
+    public synchronized void close() {
+      if(client != null) {
+        client.close();
+      }
+    }
+  }
+}
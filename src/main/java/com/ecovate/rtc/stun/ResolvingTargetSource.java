@@ -0,0 +1,197 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SchedulerService;
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Base for {@link TargetSource}s that are configured with stun servers (hostname or IP and port)
+ * which need to be resolved to target IPs.  Servers configured as an IP are only resolved once,
+ * hostnames are looked up again every refresh interval and only the IPs that changed are sent to
+ * the listener.
+ */
+public abstract class ResolvingTargetSource implements TargetSource {
+  private static final Logger log = LoggerFactory.getLogger(ResolvingTargetSource.class);
+  public static final int DEFAULT_STUN_PORT = 3478;
+  public static final long DEFAULT_REFRESH_INTERVAL = 5000;
+
+  private final ConcurrentHashMap<InetSocketAddress, Set<InetSocketAddress>> servers = new ConcurrentHashMap<>();
+  private final Set<InetSocketAddress> hostnames = ConcurrentHashMap.newKeySet();
+  private final Runnable refreshRunner = ()->refresh();
+  protected final SubmitterScheduler scheduler;
+  protected final long refreshInterval;
+  private volatile Listener listener;
+  private volatile Thread startingThread;
+
+  protected ResolvingTargetSource(SubmitterScheduler scheduler, long refreshInterval) {
+    this.scheduler = scheduler;
+    this.refreshInterval = refreshInterval;
+  }
+
+  @Override
+  public void start(Listener listener) {
+    this.listener = listener;
+    // the servers known at startup are resolved before this returns, see TargetSource.start.
+    startingThread = Thread.currentThread();
+    try {
+      startupSource();
+    } finally {
+      startingThread = null;
+    }
+    scheduler.scheduleAtFixedRate(refreshRunner, refreshInterval, refreshInterval);
+  }
+
+  @Override
+  public void stop() {
+    if(scheduler instanceof SchedulerService) {
+      ((SchedulerService)scheduler).remove(refreshRunner);
+    }
+    listener = null;
+  }
+
+  /**
+   * Called from {@link #start(Listener)} to add the servers the source already knows about.
+   */
+  protected abstract void startupSource();
+
+  /**
+   * @return the configured servers, unresolved.
+   */
+  public Set<InetSocketAddress> getServers() {
+    return Collections.unmodifiableSet(servers.keySet());
+  }
+
+  /**
+   * Adds a server.  IPs, and hostnames added while the source is starting, are added right away.
+   * Hostnames added later (ie. through the admin API) are looked up on the scheduler so the 
+   * caller never blocks on DNS.
+   * 
+   * @return false if the server was already added.
+   */
+  protected boolean addServer(InetSocketAddress server) {
+    if(servers.putIfAbsent(server, Collections.emptySet()) != null) {
+      return false;
+    }
+    boolean literal = isIPLiteral(server.getHostString());
+    if(!literal) {
+      hostnames.add(server);
+    }
+    if(literal || Thread.currentThread() == startingThread) {
+      resolve(server);
+    } else {
+      scheduler.execute(()->resolve(server));
+    }
+    return true;
+  }
+
+  /**
+   * Removes a server and all the targets it resolved to.
+   * 
+   * @return false if the server was not added.
+   */
+  protected boolean removeServer(InetSocketAddress server) {
+    hostnames.remove(server);
+    Set<InetSocketAddress> old;
+    synchronized(this) {
+      old = servers.remove(server);
+    }
+    if(old == null) {
+      return false;
+    }
+    Listener l = listener;
+    for(InetSocketAddress ia: old) {
+      if(l != null) {
+        l.targetRemoved(this, hostKey(server), ia);
+      }
+    }
+    return true;
+  }
+
+  private void refresh() {
+    for(InetSocketAddress server: hostnames) {
+      resolve(server);
+    }
+  }
+
+  private void resolve(InetSocketAddress server) {
+    Set<InetSocketAddress> resolved = new HashSet<>();
+    try {
+      for(InetAddress ia: InetAddress.getAllByName(server.getHostString())) {
+        resolved.add(new InetSocketAddress(ia, server.getPort()));
+      }
+    } catch (UnknownHostException e) {
+      log.error("Problem looking up address for:{}\n{}", server, ExceptionUtils.stackToString(e));
+    }
+    Listener l = listener;
+    String host = hostKey(server);
+    synchronized(this) {
+      Set<InetSocketAddress> old = servers.get(server);
+      if(old == null || old.equals(resolved)) {
+        return;
+      }
+      servers.put(server, resolved);
+      if(l == null) {
+        return;
+      }
+      for(InetSocketAddress ia: resolved) {
+        if(!old.contains(ia)) {
+          l.targetAdded(this, host, ia);
+        }
+      }
+      for(InetSocketAddress ia: old) {
+        if(!resolved.contains(ia)) {
+          l.targetRemoved(this, host, ia);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the host key of the server, or null if the server was configured as an IP.
+   */
+  private static String hostKey(InetSocketAddress server) {
+    if(isIPLiteral(server.getHostString())) {
+      return null;
+    }
+    return StunHTTP.hostKey(server);
+  }
+
+  static boolean isIPLiteral(String host) {
+    return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+  }
+
+  /**
+   * Parses a server in the form host, host:port, [ipv6] or [ipv6]:port without resolving it.
+   */
+  public static InetSocketAddress parseServer(String server) {
+    String s = server.trim();
+    if(s.startsWith("[")) {
+      int end = s.indexOf(']');
+      if(end < 0) {
+        throw new IllegalArgumentException("Bad server:"+server);
+      }
+      String host = s.substring(1, end);
+      String rest = s.substring(end+1);
+      int port = rest.startsWith(":") ? Integer.parseInt(rest.substring(1)) : DEFAULT_STUN_PORT;
+      return InetSocketAddress.createUnresolved(host, port);
+    }
+    int idx = s.indexOf(':');
+    if(idx >= 0 && idx == s.lastIndexOf(':')) {
+      return InetSocketAddress.createUnresolved(s.substring(0, idx), Integer.parseInt(s.substring(idx+1)));
+    }
+    if(s.isEmpty()) {
+      throw new IllegalArgumentException("Bad server:"+server);
+    }
+    return InetSocketAddress.createUnresolved(s, DEFAULT_STUN_PORT);
+  }
+}
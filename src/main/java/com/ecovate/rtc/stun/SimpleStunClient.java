@@ -2,32 +2,31 @@ package com.ecovate.rtc.stun;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.LongAdder;
 
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SubmitterScheduler;
 import org.threadly.concurrent.future.FutureCallback;
 import org.threadly.concurrent.future.FutureUtils;
 import org.threadly.concurrent.future.ListenableFuture;
 import org.threadly.concurrent.future.SettableListenableFuture;
-import org.threadly.litesockets.Client;
 import org.threadly.litesockets.SingleThreadSocketExecuter;
 import org.threadly.litesockets.SocketExecuter;
 import org.threadly.litesockets.UDPClient;
 import org.threadly.litesockets.UDPServer;
 import org.threadly.litesockets.buffers.MergedByteBuffers;
 import org.threadly.util.AbstractService;
-import org.threadly.util.Clock;
-
-import io.prometheus.client.Histogram;
-import io.prometheus.client.Histogram.Timer;
 
 import org.threadly.litesockets.protocols.stun.StunMessageType;
 import org.threadly.litesockets.protocols.stun.StunPacket;
@@ -37,13 +36,6 @@ import org.threadly.litesockets.protocols.stun.TransactionID;
 
 public class SimpleStunClient extends AbstractService {
   
-  private static final Histogram stunRequestLatency = Histogram.build()
-      .name("stun_requests_latency_seconds")
-      .help("Stun Request latency in seconds.")
-      .exponentialBuckets(.002, 2, 12)
-      .labelNames("ip")
-      .register();
-  
   public final Logger log;
 
   private final ConcurrentHashMap<TransactionID, RequestWrapper> pendingRequests = new ConcurrentHashMap<>();
@@ -53,14 +45,11 @@ public class SimpleStunClient extends AbstractService {
   private final LongAdder success = new LongAdder();
   private final LongAdder failed = new LongAdder();
   private final LongAdder latency = new LongAdder();
-  private final SocketExecuter se;
-  private final UDPServer server;
-  private final UDPClient client;
-  private final InetAddress bindAddress;
-  private final int bindPort;
-  private final InetAddress remoteAddress;
-  private final int remotePort;
+  private final StunClock clock;
+  private final SubmitterScheduler scheduler;
+  private final Transport transport;
   private final int currentStats;
+  private volatile ProbeListener listener;
 
 
   public SimpleStunClient(SocketExecuter se, 
@@ -69,37 +58,57 @@ public class SimpleStunClient extends AbstractService {
       InetAddress remoteAddress, 
       int remotePort, 
       int currentStats) throws IOException {
-    
-    this.se = se;
-    this.bindAddress = bindAddress;
-    this.bindPort = bindPort;
-    this.remoteAddress = remoteAddress;
-    this.remotePort = remotePort;
+    this(StunClock.SYSTEM, se.getThreadScheduler(), 
+        new UDPTransport(se, bindAddress, bindPort, remoteAddress, remotePort), currentStats);
+  }
+
+  /**
+   * @param clock the clock to time requests with.
+   * @param scheduler the scheduler to time requests out on.
+   * @param transport the transport to send requests over, it should pass every response to 
+   * {@link #onResponse(ByteBuffer)}.
+   */
+  public SimpleStunClient(StunClock clock, 
+      SubmitterScheduler scheduler, 
+      Transport transport, 
+      int currentStats) {
+    this.clock = clock;
+    this.scheduler = scheduler;
+    this.transport = transport;
     this.currentStats = currentStats;
-    se.startIfNotStarted();
-    server = se.createUDPServer(this.bindAddress.getHostAddress(), this.bindPort);
-    client = server.createUDPClient(this.remoteAddress.getHostAddress(), this.remotePort);
-    client.setReader((c)->onRead(c));
-    log = LoggerFactory.getLogger(this.bindAddress.getHostAddress()+":"+
-        this.bindPort+"->"+this.remoteAddress.getHostAddress()+":"+
-        this.remotePort);
+    log = LoggerFactory.getLogger(transport.toString());
   }
 
 
   @Override
   protected void startupService() {
-    server.start();
+    transport.start(this);
   }
 
   @Override
   protected void shutdownService() {
-    server.close();
-    client.close();
+    transport.close();
     resetStats();
     pendingRequests.clear();
     tList.clear();
   }
 
+  /**
+   * Sets the {@link ProbeListener} to be notified each time a request completes or times out.
+   * 
+   * @param listener the listener to notify, or null to stop notifications.
+   */
+  public void setProbeListener(ProbeListener listener) {
+    this.listener = listener;
+  }
+
+  private void notifyListener(long startTime, long rtt) {
+    ProbeListener pl = listener;
+    if(pl != null) {
+      pl.onProbe(this, startTime, rtt);
+    }
+  }
+
   public void resetStats() {
     pendingRequests.clear();
     requests.reset();
@@ -108,18 +117,25 @@ public class SimpleStunClient extends AbstractService {
     tList.clear();
   }
 
-  private void onRead(Client c) {
-    MergedByteBuffers mbb = client.getRead();
-    ByteBuffer bb = mbb.pullBuffer(mbb.remaining());
+  /**
+   * Handles a response read by the {@link Transport}.
+   */
+  void onResponse(ByteBuffer bb) {
+    final long readStart = System.nanoTime();
     try {
       final StunPacket sp = new StunPacket(bb);
       RequestWrapper rw = pendingRequests.get(sp.getTxID());
       if(rw != null && !rw.rfailed) {
-        long rtt = Clock.accurateForwardProgressingMillis() - rw.startTime;
+        long endTime = clock.millis();
+        long rtt = endTime - rw.startTime;
         latency.add(rtt);
         completedRequests.increment();
-        rw.complete(sp);
-        log.info("CompletedRequest:{}",byteArrayToHex(sp.getTxID().getArray()));
+        rw.complete(sp, endTime);
+        if(log.isDebugEnabled()) {
+          log.debug("CompletedRequest:{}",byteArrayToHex(sp.getTxID().getArray()));
+        }
+        notifyListener(rw.startTime, rtt);
+        PipelineStats.observe(PipelineStats.Stage.COMPLETION, System.nanoTime()-readStart);
       }
     } catch (StunProtocolException e) {
       log.error("Bad UDP response.", e);
@@ -130,13 +146,15 @@ public class SimpleStunClient extends AbstractService {
     if(isRunning()) {
       try {
         StunPacket sp = new StunPacketBuilder().setType(StunMessageType.REQUEST).build();
-        RequestWrapper rw = new RequestWrapper(sp, remoteAddress.getHostAddress());
+        RequestWrapper rw = new RequestWrapper(sp);
         requests.increment();
         tList.add(sp.getTxID());
         pendingRequests.put(sp.getTxID(), rw);
-        client.write(sp.getBytes());
+        transport.write(sp.getBytes());
         rw.watch(1000);
-        log.info("SentRequest:{}",byteArrayToHex(sp.getTxID().getArray()));
+        if(log.isDebugEnabled()) {
+          log.debug("SentRequest:{}",byteArrayToHex(sp.getTxID().getArray()));
+        }
         while(tList.size() > currentStats) {
           TransactionID tid = tList.poll();
           pendingRequests.remove(tid);
@@ -209,6 +227,39 @@ public class SimpleStunClient extends AbstractService {
     return total/(double)count;
   }
 
+  /**
+   * @param pct the percentile to get (0-100).
+   * @return the latency at the given percentile of the completed requests in the current stats window.
+   */
+  public double currentLatencyPercentile(double pct) {
+    return currentLatencyPercentiles(new double[] {pct/100.0})[0];
+  }
+
+  /**
+   * @param quantiles the quantiles to get (0.0-1.0).
+   * @return the latency at each of the given quantiles of the completed requests in the current stats window.
+   */
+  public double[] currentLatencyPercentiles(double[] quantiles) {
+    List<RequestWrapper> last = getCurrentList();
+    long[] latencies = new long[last.size()];
+    int count = 0;
+    for(RequestWrapper rw: last) {
+      if(rw != null && rw.done) {
+        latencies[count++] = rw.endTime-rw.startTime;
+      }
+    }
+    double[] result = new double[quantiles.length];
+    if(count == 0) {
+      return result;
+    }
+    Arrays.sort(latencies, 0, count);
+    for(int i=0; i<quantiles.length; i++) {
+      int idx = (int)Math.ceil(Math.min(1, Math.max(0, quantiles[i]))*count)-1;
+      result[i] = latencies[Math.max(0, idx)];
+    }
+    return result;
+  }
+
   public double currentCompletedPCT() {
     List<RequestWrapper> last = getCurrentList();
     int done = 0;
@@ -252,43 +303,122 @@ public class SimpleStunClient extends AbstractService {
     return requests.sum();
   }
 
+  public long totalCompletedRequests() {
+    return completedRequests.sum();
+  }
+
+  public long totalFailedRequests() {
+    return failed.sum();
+  }
+
+  public long totalLatency() {
+    return latency.sum();
+  }
+
+  /**
+   * @return the finished requests in the current stats window, oldest first, as 
+   * {startTime, rtt} pairs where rtt is -1 for a request that timed out.
+   */
+  public List<long[]> currentSamples() {
+    List<RequestWrapper> last = getCurrentList();
+    ArrayList<long[]> samples = new ArrayList<>(last.size());
+    for(int i=last.size()-1; i>=0; i--) {
+      RequestWrapper rw = last.get(i);
+      if(rw != null && rw.done) {
+        samples.add(new long[] {rw.startTime, rw.endTime-rw.startTime});
+      } else if(rw != null && rw.rfailed) {
+        samples.add(new long[] {rw.startTime, -1});
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Seeds the counters and the current stats window from a previous run so stats are 
+   * meaningful without having to wait for new requests.
+   * 
+   * @param samples the finished requests oldest first as {startTime, rtt} pairs, see {@link #currentSamples()}.
+   */
+  public void restore(long requests, long completed, long failed, long latency, List<long[]> samples) {
+    this.requests.add(requests);
+    this.completedRequests.add(completed);
+    this.failed.add(failed);
+    this.latency.add(latency);
+    for(long[] sample: samples) {
+      try {
+        StunPacket sp = new StunPacketBuilder().setType(StunMessageType.REQUEST).build();
+        RequestWrapper rw = new RequestWrapper(sp, sample[0], sample[1]);
+        tList.add(sp.getTxID());
+        pendingRequests.put(sp.getTxID(), rw);
+      } catch (StunProtocolException e) {
+        log.error("Error restoring stun sample.", e);
+      }
+    }
+    while(tList.size() > currentStats) {
+      TransactionID tid = tList.poll();
+      pendingRequests.remove(tid);
+    }
+  }
+
   private class RequestWrapper {
     private final StunPacket request;
     private final long startTime;
-    private final Timer pTimer;
     private final SettableListenableFuture<StunPacket> future = new SettableListenableFuture<StunPacket>(false);
     private final SettableListenableFuture<Boolean> watched = new SettableListenableFuture<Boolean>(false);
     private volatile long endTime = -1;
     private volatile boolean done = false;
     private volatile boolean rfailed = false;
+    private volatile long deadline = -1;
+
+    RequestWrapper(StunPacket request) {
+      this.request = request;
+      this.startTime = clock.millis();
+    }
 
-    RequestWrapper(StunPacket request, String ipAdder) {
+    /**
+     * Creates an already finished request for a restored sample.
+     */
+    RequestWrapper(StunPacket request, long startTime, long rtt) {
       this.request = request;
-      this.startTime = Clock.accurateForwardProgressingMillis();
-      this.pTimer = stunRequestLatency.labels(ipAdder).startTimer();
+      this.startTime = startTime;
+      if(rtt >= 0) {
+        this.endTime = startTime+rtt;
+        this.done = true;
+      } else {
+        this.rfailed = true;
+      }
     }
 
-    private void complete(StunPacket sp) {
-      log.info("latency:{}", pTimer.observeDuration());
+    private void complete(StunPacket sp, long endTime) {
       watched.setResult(true);
+      this.endTime = endTime;
       done = true;
-      endTime = Clock.lastKnownForwardProgressingMillis();
+      if(log.isDebugEnabled()) {
+        log.debug("latency:{}", (endTime-startTime)/1000.0);
+      }
       future.setResult(sp);
     }
 
     private void cancel() {
       RequestWrapper rw = pendingRequests.get(request.getTxID());
       if(rw != null) {
-        log.info("Failed Request:{}", byteArrayToHex(rw.request.getTxID().getArray()));
+        if(log.isDebugEnabled()) {
+          log.debug("Failed Request:{}", byteArrayToHex(rw.request.getTxID().getArray()));
+        }
         rfailed = true;
         failed.increment();
       }
       if(!future.isDone()) {
         future.cancel(false);
       }
+      if(rw != null) {
+        notifyListener(startTime, -1);
+        PipelineStats.observeMillis(PipelineStats.Stage.COMPLETION, clock.millis()-deadline);
+      }
     }
 
     private void watch(long timeout) {
+      deadline = startTime+timeout;
 
       watched.callback(new FutureCallback<Boolean>() {
 
@@ -301,10 +431,85 @@ public class SimpleStunClient extends AbstractService {
         public void handleFailure(Throwable t) {
           cancel();
         }});
-      se.watchFuture(watched, timeout);
+      scheduler.schedule(()->watched.setFailure(new TimeoutException()), timeout);
     }
   }
 
+  /**
+   * Sends requests to a target and passes the responses back to the client.
+   */
+  public interface Transport {
+    /**
+     * Starts passing responses to {@link SimpleStunClient#onResponse(ByteBuffer)}.
+     */
+    public void start(SimpleStunClient ssc);
+
+    public void write(ByteBuffer bb);
+
+    public void close();
+  }
+
+  /**
+   * Creates the {@link Transport} for each target.
+   */
+  public interface TransportFactory {
+    public Transport create(InetSocketAddress target) throws IOException;
+  }
+
+  /**
+   * Sends requests over UDP from the bind address.
+   */
+  private static class UDPTransport implements Transport {
+    private final UDPServer server;
+    private final UDPClient client;
+    private final String name;
+
+    UDPTransport(SocketExecuter se, InetAddress bindAddress, int bindPort, InetAddress remoteAddress, int remotePort) throws IOException {
+      se.startIfNotStarted();
+      server = se.createUDPServer(bindAddress.getHostAddress(), bindPort);
+      client = server.createUDPClient(remoteAddress.getHostAddress(), remotePort);
+      name = bindAddress.getHostAddress()+":"+bindPort+"->"+remoteAddress.getHostAddress()+":"+remotePort;
+    }
+
+    @Override
+    public void start(SimpleStunClient ssc) {
+      client.setReader((c)->{
+        MergedByteBuffers mbb = c.getRead();
+        ssc.onResponse(mbb.pullBuffer(mbb.remaining()));
+      });
+      server.start();
+    }
+
+    @Override
+    public void write(ByteBuffer bb) {
+      final long start = System.nanoTime();
+      client.write(bb).listener(()->PipelineStats.observe(PipelineStats.Stage.WRITE, System.nanoTime()-start));
+    }
+
+    @Override
+    public void close() {
+      server.close();
+      client.close();
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Listener called from the socket/scheduler threads when a request finishes.
+   */
+  public interface ProbeListener {
+    /**
+     * @param ssc the client the request was sent from.
+     * @param startTime the time in millis the request was sent.
+     * @param rtt the round trip time in millis or -1 if the request timed out.
+     */
+    public void onProbe(SimpleStunClient ssc, long startTime, long rtt);
+  }
+
   public static String byteArrayToHex(byte[] a) {
     StringBuilder sb = new StringBuilder(a.length * 2);
     for(byte b: a)
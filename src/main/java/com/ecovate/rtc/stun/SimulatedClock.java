@@ -0,0 +1,252 @@
+package com.ecovate.rtc.stun;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+
+import org.threadly.concurrent.AbstractSubmitterScheduler;
+import org.threadly.concurrent.ContainerHelper;
+import org.threadly.concurrent.PrioritySchedulerService;
+import org.threadly.concurrent.TaskPriority;
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Virtual time for simulations.  Time only moves when {@link #advance(long)} is called, which
+ * runs every task scheduled up to the new time on the calling thread at the time it was scheduled
+ * for, so hours of probing run as fast as the tasks themselves and always run in the same order.
+ *
+ * Tasks are kept in a heap rather than threadly's TestableScheduler, which copies its queue on
+ * every insert and does not keep up with thousands of targets.
+ */
+public class SimulatedClock implements StunClock {
+  private final VirtualScheduler scheduler = new VirtualScheduler();
+  private final long startEpoch;
+
+  /**
+   * @param startEpoch the epoch time in millis the simulation starts at.
+   */
+  public SimulatedClock(long startEpoch) {
+    this.startEpoch = startEpoch;
+  }
+
+  /**
+   * @return the scheduler to run everything in the simulation on.
+   */
+  public PrioritySchedulerService getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Moves time forward, running every task that comes due along the way.
+   *
+   * @return the number of tasks run.
+   */
+  public int advance(long millis) {
+    return scheduler.advance(millis);
+  }
+
+  /**
+   * @return the millis since the simulation started.
+   */
+  public long elapsed() {
+    return scheduler.now();
+  }
+
+  @Override
+  public long millis() {
+    return scheduler.now();
+  }
+
+  @Override
+  public long epochMillis() {
+    return startEpoch+scheduler.now();
+  }
+
+  private static class VirtualTask implements Comparable<VirtualTask> {
+    final Runnable task;
+    final long period;
+    final boolean fixedRate;
+    long runTime;
+    long order;
+
+    VirtualTask(Runnable task, long runTime, long period, boolean fixedRate) {
+      this.task = task;
+      this.runTime = runTime;
+      this.period = period;
+      this.fixedRate = fixedRate;
+    }
+
+    @Override
+    public int compareTo(VirtualTask o) {
+      if(runTime != o.runTime) {
+        return runTime < o.runTime ? -1 : 1;
+      }
+      return Long.compare(order, o.order);
+    }
+  }
+
+  /**
+   * Single threaded scheduler on virtual time.  Priorities are accepted but ignored, tasks due at
+   * the same time run in the order they were scheduled.
+   */
+  private static class VirtualScheduler extends AbstractSubmitterScheduler implements PrioritySchedulerService {
+    private final PriorityQueue<VirtualTask> queue = new PriorityQueue<>();
+    private long now = 0;
+    private long order = 0;
+
+    synchronized long now() {
+      return now;
+    }
+
+    private synchronized void add(VirtualTask vt) {
+      vt.order = order++;
+      queue.add(vt);
+    }
+
+    int advance(long millis) {
+      final long end = now()+Math.max(0, millis);
+      int run = 0;
+      while(true) {
+        VirtualTask vt;
+        synchronized(this) {
+          vt = queue.peek();
+          if(vt == null || vt.runTime > end) {
+            now = end;
+            return run;
+          }
+          queue.poll();
+          now = Math.max(now, vt.runTime);
+        }
+        try {
+          vt.task.run();
+        } catch(Throwable t) {
+          ExceptionUtils.handleException(t);
+        }
+        run++;
+        if(vt.period > 0) {
+          vt.runTime = vt.fixedRate ? vt.runTime+vt.period : now()+vt.period;
+          add(vt);
+        }
+      }
+    }
+
+    private synchronized boolean removeContained(Object task) {
+      Iterator<VirtualTask> it = queue.iterator();
+      while(it.hasNext()) {
+        VirtualTask vt = it.next();
+        if(task instanceof Runnable ? ContainerHelper.isContained(vt.task, (Runnable)task)
+                                    : ContainerHelper.isContained(vt.task, (Callable<?>)task)) {
+          it.remove();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    protected void doSchedule(Runnable task, long delayInMillis) {
+      add(new VirtualTask(task, now()+Math.max(0, delayInMillis), 0, false));
+    }
+
+    @Override
+    public void scheduleWithFixedDelay(Runnable task, long initialDelay, long recurringDelay) {
+      add(new VirtualTask(task, now()+Math.max(0, initialDelay), Math.max(1, recurringDelay), false));
+    }
+
+    @Override
+    public void scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+      add(new VirtualTask(task, now()+Math.max(0, initialDelay), Math.max(1, period), true));
+    }
+
+    @Override
+    public boolean remove(Runnable task) {
+      return removeContained(task);
+    }
+
+    @Override
+    public boolean remove(Callable<?> task) {
+      return removeContained(task);
+    }
+
+    @Override
+    public int getActiveTaskCount() {
+      return 0;
+    }
+
+    @Override
+    public synchronized int getQueuedTaskCount() {
+      return queue.size();
+    }
+
+    @Override
+    public int getWaitingForExecutionTaskCount() {
+      return 0;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public void execute(Runnable task, TaskPriority priority) {
+      execute(task);
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submit(Runnable task, T result, TaskPriority priority) {
+      return submit(task, result);
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submit(Callable<T> task, TaskPriority priority) {
+      return submit(task);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayInMs, TaskPriority priority) {
+      schedule(task, delayInMs);
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submitScheduled(Runnable task, T result, long delayInMs, TaskPriority priority) {
+      return submitScheduled(task, result, delayInMs);
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submitScheduled(Callable<T> task, long delayInMs, TaskPriority priority) {
+      return submitScheduled(task, delayInMs);
+    }
+
+    @Override
+    public void scheduleWithFixedDelay(Runnable task, long initialDelay, long recurringDelay, TaskPriority priority) {
+      scheduleWithFixedDelay(task, initialDelay, recurringDelay);
+    }
+
+    @Override
+    public void scheduleAtFixedRate(Runnable task, long initialDelay, long period, TaskPriority priority) {
+      scheduleAtFixedRate(task, initialDelay, period);
+    }
+
+    @Override
+    public TaskPriority getDefaultPriority() {
+      return TaskPriority.High;
+    }
+
+    @Override
+    public long getMaxWaitForLowPriority() {
+      return 0;
+    }
+
+    @Override
+    public int getQueuedTaskCount(TaskPriority priority) {
+      return getQueuedTaskCount();
+    }
+
+    @Override
+    public int getWaitingForExecutionTaskCount(TaskPriority priority) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A stun target that only exists in a simulation.  Each request is answered, or dropped, based on
+ * the {@link Segment} of the targets timeline that is active when the request is sent.
+ */
+public class SimulatedTarget implements SimpleStunClient.Transport {
+  private final InetSocketAddress address;
+  private final SimulatedClock clock;
+  private final List<Segment> timeline;
+  private final Random random;
+  private volatile SimpleStunClient client;
+
+  /**
+   * @param timeline the segments ordered by start time, the first should start at 0.
+   * @param seed the seed for the latency jitter and loss, the same seed gives the same results.
+   */
+  public SimulatedTarget(InetSocketAddress address, SimulatedClock clock, List<Segment> timeline, long seed) {
+    this.address = address;
+    this.clock = clock;
+    this.timeline = timeline;
+    this.random = new Random(seed);
+  }
+
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * @return the segment active at the given millis since the simulation started, null if there is none.
+   */
+  Segment segmentAt(long elapsed) {
+    Segment active = null;
+    for(Segment seg: timeline) {
+      if(seg.start > elapsed) {
+        break;
+      }
+      active = seg;
+    }
+    return active;
+  }
+
+  @Override
+  public void start(SimpleStunClient ssc) {
+    client = ssc;
+  }
+
+  @Override
+  public void write(ByteBuffer bb) {
+    Segment seg = segmentAt(clock.elapsed());
+    if(seg == null || random.nextDouble() < seg.loss) {
+      return;
+    }
+    long latency = seg.latency;
+    if(seg.jitter > 0) {
+      latency = Math.max(0, latency+random.nextInt((seg.jitter*2)+1)-seg.jitter);
+    }
+    // The request is echoed back, the client only matches responses on the transaction ID.
+    final ByteBuffer response = ByteBuffer.allocate(bb.remaining());
+    response.put(bb.duplicate());
+    response.flip();
+    clock.getScheduler().schedule(()->{
+      SimpleStunClient ssc = client;
+      if(ssc != null) {
+        ssc.onResponse(response);
+      }
+    }, latency);
+  }
+
+  @Override
+  public void close() {
+    client = null;
+  }
+
+  @Override
+  public String toString() {
+    return "simulated->"+StunHTTP.targetKey(address);
+  }
+
+  /**
+   * How a target responds from a point in the simulation on.
+   */
+  public static class Segment {
+    final long start;
+    final int latency;
+    final int jitter;
+    final double loss;
+
+    /**
+     * @param start the millis since the simulation started this segment starts at.
+     * @param latency the latency in millis of each response.
+     * @param jitter the max millis each response is randomly faster or slower.
+     * @param loss the chance 0.0 - 1.0 of each request getting no response.
+     */
+    public Segment(long start, int latency, int jitter, double loss) {
+      this.start = start;
+      this.latency = latency;
+      this.jitter = jitter;
+      this.loss = loss;
+    }
+
+    @Override
+    public String toString() {
+      return "Segment[start="+start+",latency="+latency+",jitter="+jitter+",loss="+loss+"]";
+    }
+  }
+}
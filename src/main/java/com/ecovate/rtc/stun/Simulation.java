@@ -0,0 +1,357 @@
+package com.ecovate.rtc.stun;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Runs {@link StunHTTP} against {@link SimulatedTarget}s on a {@link SimulatedClock}, so hours of
+ * probing with scripted latency and loss run in seconds and give the same results every time.
+ *
+ * The script has one line per change, "{targets} {at seconds} {latency ms} [jitter ms] [loss]",
+ * where targets is "*", a target index or a range of them (ie. "10-19").  Each line applies
+ * from its time until a later line for the same target.
+ */
+public class Simulation {
+  private static final Logger log = LoggerFactory.getLogger(Simulation.class);
+  private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+  public static final SimulatedTarget.Segment DEFAULT_SEGMENT = new SimulatedTarget.Segment(0, 20, 5, 0);
+  public static final long DEFAULT_START_EPOCH = 1500000000000L;
+  private static final int STEP = 1000;
+
+  private final SimulatedClock clock = new SimulatedClock(DEFAULT_START_EPOCH);
+  private final HashMap<InetSocketAddress, SimulatedTarget> targets = new HashMap<>();
+  private final HashMap<InetSocketAddress, TargetResult> results = new HashMap<>();
+  private final List<InetSocketAddress> addresses = new ArrayList<>();
+  private final StunHTTP stunHTTP;
+
+  /**
+   * @param timelines the timeline for each target, see {@link #parseScript(List, int)}.
+   * @param seed the seed for the targets jitter and loss.
+   * @param delay the delay in millis between checks.
+   */
+  public Simulation(List<List<SimulatedTarget.Segment>> timelines, long seed, int delay, int cached,
+      HealthConfig healthConfig) throws IOException {
+    for(int i=0; i<timelines.size(); i++) {
+      InetSocketAddress isa = new InetSocketAddress(targetAddress(i), ResolvingTargetSource.DEFAULT_STUN_PORT);
+      addresses.add(isa);
+      targets.put(isa, new SimulatedTarget(isa, clock, timelines.get(i), (seed*31)+i));
+      results.put(isa, new TargetResult(i, isa));
+    }
+    List<TargetSource> sources = new ArrayList<>();
+    sources.add(new StaticTargetSource(addresses, clock.getScheduler()));
+    stunHTTP = new StunHTTP(clock, clock.getScheduler(), (isa)->targets.get(isa), null,
+        Collections.emptyList(), sources, delay, cached, healthConfig, new TargetRanking(),
+        null, null, null, null, null, null);
+  }
+
+  /**
+   * Runs the simulation for the given millis of virtual time and stops it.
+   */
+  public Report run(long duration) {
+    long wallStart = System.nanoTime();
+    long tasks = 0;
+    while(clock.elapsed() < duration) {
+      tasks += clock.advance(Math.min(STEP, duration-clock.elapsed()));
+      checkStates();
+    }
+    Report report = new Report(addresses.size(), duration, (System.nanoTime()-wallStart)/1000000, tasks);
+    for(StunTarget st: stunHTTP.getTargets()) {
+      TargetResult tr = results.get(st.address);
+      tr.finish(st, clock.elapsed());
+      report.add(tr);
+    }
+    stunHTTP.stop();
+    return report;
+  }
+
+  private void checkStates() {
+    for(StunTarget st: stunHTTP.getTargets()) {
+      TargetResult tr = results.get(st.address);
+      if(tr != null) {
+        tr.check(st.health, clock.elapsed());
+      }
+    }
+  }
+
+  static InetAddress targetAddress(int i) throws UnknownHostException {
+    return InetAddress.getByAddress(new byte[] {10, (byte)(i >> 16), (byte)(i >> 8), (byte)i});
+  }
+
+  /**
+   * Builds the timeline for each target from the script lines, every target starts with the
+   * {@link #DEFAULT_SEGMENT}.
+   */
+  public static List<List<SimulatedTarget.Segment>> parseScript(List<String> lines, int count) {
+    List<List<SimulatedTarget.Segment>> timelines = new ArrayList<>(count);
+    for(int i=0; i<count; i++) {
+      List<SimulatedTarget.Segment> timeline = new ArrayList<>();
+      timeline.add(DEFAULT_SEGMENT);
+      timelines.add(timeline);
+    }
+    for(String line: lines) {
+      String l = line.trim();
+      if(l.isEmpty() || l.startsWith("#")) {
+        continue;
+      }
+      String[] parts = l.split("\\s+");
+      if(parts.length < 3) {
+        throw new IllegalArgumentException("Bad script line:"+line);
+      }
+      int first = 0;
+      int last = count-1;
+      if(!parts[0].equals("*")) {
+        String[] range = parts[0].split("-");
+        first = Integer.parseInt(range[0]);
+        last = range.length > 1 ? Integer.parseInt(range[1]) : first;
+      }
+      SimulatedTarget.Segment seg = new SimulatedTarget.Segment(
+          (long)(Double.parseDouble(parts[1])*1000),
+          Integer.parseInt(parts[2]),
+          parts.length > 3 ? Integer.parseInt(parts[3]) : 0,
+          parts.length > 4 ? Double.parseDouble(parts[4]) : 0);
+      for(int i=Math.max(0, first); i<=Math.min(count-1, last); i++) {
+        timelines.get(i).add(seg);
+      }
+    }
+    for(List<SimulatedTarget.Segment> timeline: timelines) {
+      timeline.sort((a, b)->Long.compare(a.start, b.start));
+    }
+    return timelines;
+  }
+
+  /**
+   * The health state changes of a single target.
+   */
+  public static class TargetResult {
+    private final int index;
+    private final String target;
+    private final List<String> transitions = new ArrayList<>();
+    private transient HealthTracker.State lastState = HealthTracker.State.UP;
+    private transient long downSince = -1;
+    private transient List<Long> detectTimes = new ArrayList<>();
+    private long down_seconds;
+    private long requests;
+    private long timeouts;
+
+    TargetResult(int index, InetSocketAddress isa) {
+      this.index = index;
+      this.target = StunHTTP.targetKey(isa);
+    }
+
+    void check(HealthTracker ht, long elapsed) {
+      HealthTracker.State state = ht.getState();
+      if(state == lastState) {
+        return;
+      }
+      lastState = state;
+      transitions.add((elapsed/1000)+"s:"+state);
+      if(state == HealthTracker.State.DOWN) {
+        downSince = elapsed;
+        detectTimes.add(ht.getLastDetectTime());
+      } else if(downSince >= 0) {
+        down_seconds += (elapsed-downSince)/1000;
+        downSince = -1;
+      }
+    }
+
+    void finish(StunTarget st, long elapsed) {
+      if(downSince >= 0) {
+        down_seconds += (elapsed-downSince)/1000;
+        downSince = -1;
+      }
+      requests = st.client.totalRequests();
+      timeouts = st.client.totalFailedRequests();
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public String getTarget() {
+      return target;
+    }
+
+    public List<String> getTransitions() {
+      return transitions;
+    }
+
+    public long getDown_seconds() {
+      return down_seconds;
+    }
+  }
+
+  /**
+   * The results of a run, only targets that changed state are listed.
+   */
+  public static class Report {
+    private final int targets;
+    private final long simulated_seconds;
+    private final long wall_millis;
+    private final long tasks_run;
+    private long requests;
+    private long timeouts;
+    private int targets_tripped;
+    private int transitions;
+    private long detect_millis_min = -1;
+    private long detect_millis_max = -1;
+    private String detect_millis_avg = "0.0000";
+    private transient long detectTotal;
+    private transient int detectCount;
+    private final List<TargetResult> changed = new ArrayList<>();
+
+    Report(int targets, long duration, long wallMillis, long tasks) {
+      this.targets = targets;
+      this.simulated_seconds = duration/1000;
+      this.wall_millis = wallMillis;
+      this.tasks_run = tasks;
+    }
+
+    void add(TargetResult tr) {
+      requests += tr.requests;
+      timeouts += tr.timeouts;
+      if(tr.transitions.isEmpty()) {
+        return;
+      }
+      targets_tripped++;
+      transitions += tr.transitions.size();
+      for(long detect: tr.detectTimes) {
+        detect_millis_min = detect_millis_min < 0 ? detect : Math.min(detect_millis_min, detect);
+        detect_millis_max = Math.max(detect_millis_max, detect);
+        detectTotal += detect;
+        detectCount++;
+      }
+      detect_millis_avg = String.format("%.4f", detectCount == 0 ? 0.0 : detectTotal/(double)detectCount);
+      changed.add(tr);
+      changed.sort((a, b)->Integer.compare(a.index, b.index));
+    }
+
+    public int getTargets() {
+      return targets;
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    public long getTimeouts() {
+      return timeouts;
+    }
+
+    public int getTargets_tripped() {
+      return targets_tripped;
+    }
+
+    public List<TargetResult> getChanged() {
+      return changed;
+    }
+
+    public String toJson() {
+      return GSON.toJson(this);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    LoggingConfig.configureLogging();
+    ArgumentParser parser = ArgumentParsers.newFor("Simulation").build()
+        .defaultHelp(true)
+        .description("Runs the stun checks against simulated targets in virtual time");
+    parser.addArgument("--targets")
+        .type(Integer.class)
+        .setDefault(100)
+        .help("Number of simulated targets");
+    parser.addArgument("--duration")
+        .type(Integer.class)
+        .setDefault(3600)
+        .help("Seconds of virtual time to simulate");
+    parser.addArgument("--script")
+        .help("Script of latency/loss changes, see the README");
+    parser.addArgument("--seed")
+        .type(Long.class)
+        .setDefault(1L)
+        .help("Seed for the simulated latency jitter and loss");
+    parser.addArgument("-d", "--delay")
+        .type(Integer.class)
+        .setDefault(5)
+        .help("Delay in seconds between checks");
+    parser.addArgument("--cachedResults")
+        .type(Integer.class)
+        .setDefault(100)
+        .help("Number of results to keep cached for checking");
+    parser.addArgument("--max_latency")
+        .type(Integer.class)
+        .setDefault(100)
+        .help("EWMA latency in milliseconds that trips a target");
+    parser.addArgument("--maxFailurePCT")
+        .type(Double.class)
+        .setDefault(0.10)
+        .help("EWMA failurePCT 0.0 - 1.0 that trips a target");
+    parser.addArgument("--fail_trip_count")
+        .type(Integer.class)
+        .setDefault(HealthConfig.DEFAULT_TRIP_FAILURES)
+        .help("Number of timeouts in a row that trip a target");
+    parser.addArgument("--ewma_alpha")
+        .type(Double.class)
+        .setDefault(HealthConfig.DEFAULT_ALPHA)
+        .help("Weight 0.01 - 1.0 given to each new sample in the EWMA latency and failurePCT");
+    parser.addArgument("--hold_down")
+        .type(Integer.class)
+        .setDefault((int)(HealthConfig.DEFAULT_HOLD_DOWN/1000))
+        .help("Minimum time in seconds a target stays down once it has failed");
+    parser.addArgument("--window_rules")
+        .help("Extra health rules checked against the time windows (ie. 5m:failed>0.2,1h:p99>250)");
+    Namespace res = null;
+    try {
+      res = parser.parseArgs(args);
+    } catch (ArgumentParserException e) {
+      parser.handleError(e);
+      System.exit(1);
+    }
+    final int latency = res.getInt("max_latency");
+    final double failures = res.getDouble("maxFailurePCT");
+    final List<WindowRule> windowRules = new ArrayList<>();
+    if(res.getString("window_rules") != null) {
+      for(String rule: res.getString("window_rules").split(",")) {
+        windowRules.add(WindowRule.parse(rule));
+      }
+    }
+    final HealthConfig healthConfig = new HealthConfig(
+        res.getInt("fail_trip_count"),
+        res.getDouble("ewma_alpha"),
+        latency,
+        (int)(latency*.8),
+        failures,
+        failures/2,
+        res.getInt("hold_down")*1000L,
+        windowRules);
+    List<String> script = Collections.emptyList();
+    if(res.getString("script") != null) {
+      script = Files.readAllLines(new File(res.getString("script")).toPath(), StandardCharsets.UTF_8);
+    }
+    int count = res.getInt("targets");
+    log.info("Simulating {} targets for {}s with:{}", count, res.getInt("duration"), healthConfig);
+    Simulation sim = new Simulation(parseScript(script, count), res.getLong("seed"),
+        res.getInt("delay")*1000, res.getInt("cachedResults"), healthConfig);
+    System.out.println(sim.run(res.getInt("duration")*1000L).toJson());
+    System.exit(0);
+  }
+}
@@ -0,0 +1,210 @@
+package com.ecovate.rtc.stun;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.util.Clock;
+
+/**
+ * Writes each targets stats window, counters and health state to a compact binary file and reads
+ * them back on startup so a restarted process can report meaningful health right away.
+ *
+ * Times are stored as epoch millis and converted back to the forward progressing clock of the new
+ * process when read.  Samples older than the max age are dropped when reading.
+ */
+public class StateSnapshot {
+  private static final Logger log = LoggerFactory.getLogger(StateSnapshot.class);
+  private static final int MAGIC = 0x5354554e;
+  private static final int VERSION = 1;
+  public static final long DEFAULT_MAX_AGE = 300000;
+  public static final long DEFAULT_INTERVAL = 10000;
+
+  private final File file;
+  private final long maxAge;
+
+  /**
+   * @param file the file to write the snapshot to and read it from.
+   * @param maxAge the max age in millis of samples to restore.
+   */
+  public StateSnapshot(File file, long maxAge) {
+    this.file = file;
+    this.maxAge = maxAge;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Writes the targets to the snapshot file, the file is replaced atomically so a crash while
+   * writing will never leave a partial snapshot behind.
+   */
+  public void write(Collection<StunTarget> targets) throws IOException {
+    List<StunTarget> list = new ArrayList<>(targets);
+    long now = Clock.accurateTimeMillis();
+    long offset = now-Clock.accurateForwardProgressingMillis();
+    File tmp = new File(file.getPath()+".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(now);
+      out.writeInt(list.size());
+      for(StunTarget st: list) {
+        byte[] addr = st.address.getAddress().getAddress();
+        out.writeByte(addr.length);
+        out.write(addr);
+        out.writeInt(st.address.getPort());
+        SimpleStunClient ssc = st.client;
+        out.writeLong(ssc.totalRequests());
+        out.writeLong(ssc.totalCompletedRequests());
+        out.writeLong(ssc.totalFailedRequests());
+        out.writeLong(ssc.totalLatency());
+        HealthTracker ht = st.health;
+        synchronized(ht) {
+          out.writeByte(ht.getState().ordinal());
+          out.writeDouble(ht.getRawEwmaLatency());
+          out.writeDouble(ht.getEwmaLoss());
+          out.writeInt(ht.getConsecutiveFailures());
+          long sct = ht.getStateChangeTime();
+          out.writeLong(sct < 0 ? -1 : sct+offset);
+        }
+        List<long[]> samples = ssc.currentSamples();
+        out.writeInt(samples.size());
+        for(long[] sample: samples) {
+          out.writeLong(sample[0]+offset);
+          out.writeInt((int)sample[1]);
+        }
+      }
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the targets from the snapshot file.  Targets with no samples newer than the max age
+   * are left out.
+   *
+   * @return the restored targets, empty if there is no snapshot or it is too old.
+   * @throws IOException if the snapshot is truncated or corrupt, nothing is restored from it.
+   */
+  public List<TargetState> read() throws IOException {
+    if(!file.exists()) {
+      return Collections.emptyList();
+    }
+    long now = Clock.accurateTimeMillis();
+    long offset = now-Clock.accurateForwardProgressingMillis();
+    long cutoff = now-maxAge;
+    ArrayList<TargetState> targets = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+        log.warn("Ignoring unknown snapshot file:{}", file);
+        return Collections.emptyList();
+      }
+      if(in.readLong() < cutoff) {
+        log.info("Ignoring snapshot older than {}ms:{}", maxAge, file);
+        return Collections.emptyList();
+      }
+      int count = in.readInt();
+      check(count >= 0, "target count");
+      for(int i=0; i<count; i++) {
+        int addrLength = in.readUnsignedByte();
+        check(addrLength == 4 || addrLength == 16, "address length");
+        byte[] addr = new byte[addrLength];
+        in.readFully(addr);
+        int port = in.readInt();
+        check(port >= 0 && port <= 65535, "port");
+        InetSocketAddress isa = new InetSocketAddress(InetAddress.getByAddress(addr), port);
+        long requests = in.readLong();
+        long completed = in.readLong();
+        long failed = in.readLong();
+        long latency = in.readLong();
+        int state = in.readUnsignedByte();
+        check(state < HealthTracker.State.values().length, "health state");
+        TargetState ts = new TargetState(isa, requests, completed, failed, latency,
+            HealthTracker.State.values()[state], in.readDouble(), in.readDouble(), in.readInt());
+        long sct = in.readLong();
+        ts.stateChangeTime = sct < 0 ? -1 : sct-offset;
+        int samples = in.readInt();
+        check(samples >= 0, "sample count");
+        for(int j=0; j<samples; j++) {
+          long time = in.readLong();
+          int rtt = in.readInt();
+          if(time >= cutoff) {
+            ts.samples.add(new long[] {time-offset, rtt});
+          }
+        }
+        if(!ts.samples.isEmpty()) {
+          targets.add(ts);
+        }
+      }
+    }
+    return targets;
+  }
+
+  private void check(boolean valid, String field) throws IOException {
+    if(!valid) {
+      throw new IOException("Corrupt snapshot, bad "+field+":"+file);
+    }
+  }
+
+  /**
+   * The saved state of a single target.
+   */
+  public static class TargetState {
+    private final InetSocketAddress address;
+    private final long requests;
+    private final long completed;
+    private final long failed;
+    private final long latency;
+    private final HealthTracker.State state;
+    private final double ewmaLatency;
+    private final double ewmaLoss;
+    private final int consecutiveFailures;
+    private final List<long[]> samples = new ArrayList<>();
+    private long stateChangeTime;
+
+    TargetState(InetSocketAddress address, long requests, long completed, long failed, long latency,
+        HealthTracker.State state, double ewmaLatency, double ewmaLoss, int consecutiveFailures) {
+      this.address = address;
+      this.requests = requests;
+      this.completed = completed;
+      this.failed = failed;
+      this.latency = latency;
+      this.state = state;
+      this.ewmaLatency = ewmaLatency;
+      this.ewmaLoss = ewmaLoss;
+      this.consecutiveFailures = consecutiveFailures;
+    }
+
+    public InetSocketAddress getAddress() {
+      return address;
+    }
+
+    public int getSampleCount() {
+      return samples.size();
+    }
+
+    /**
+     * Restores this state into a newly created target.
+     */
+    void apply(StunTarget st) {
+      st.client.restore(requests, completed, failed, latency, samples);
+      st.health.restore(state, ewmaLatency, ewmaLoss, consecutiveFailures, stateChangeTime);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.threadly.concurrent.SubmitterScheduler;
+
+/**
+ * {@link TargetSource} for the fixed list of stun servers given on the command line, hostnames
+ * are re-resolved every refresh interval.
+ */
+public class StaticTargetSource extends ResolvingTargetSource {
+  private final List<InetSocketAddress> initialServers;
+
+  public StaticTargetSource(List<InetSocketAddress> servers, SubmitterScheduler scheduler, long refreshInterval) {
+    super(scheduler, refreshInterval);
+    this.initialServers = servers;
+  }
+
+  public StaticTargetSource(List<InetSocketAddress> servers, SubmitterScheduler scheduler) {
+    this(servers, scheduler, DEFAULT_REFRESH_INTERVAL);
+  }
+
+  @Override
+  protected void startupSource() {
+    for(InetSocketAddress server: initialServers) {
+      addServer(server);
+    }
+  }
+}
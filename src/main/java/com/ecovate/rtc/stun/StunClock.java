@@ -0,0 +1,34 @@
+package com.ecovate.rtc.stun;
+
+import org.threadly.util.Clock;
+
+/**
+ * Source of time for probing and health checks, so they can be run against a
+ * {@link SimulatedClock} as well as the real clock.
+ */
+public interface StunClock {
+  /**
+   * The real clock backed by threadly's {@link Clock}.
+   */
+  public static final StunClock SYSTEM = new StunClock() {
+    @Override
+    public long millis() {
+      return Clock.accurateForwardProgressingMillis();
+    }
+
+    @Override
+    public long epochMillis() {
+      return Clock.accurateTimeMillis();
+    }
+  };
+
+  /**
+   * @return forward progressing time in millis, used for request and health timing.
+   */
+  public long millis();
+
+  /**
+   * @return the epoch time in millis, used for anything stored or reported.
+   */
+  public long epochMillis();
+}
@@ -0,0 +1,94 @@
+package com.ecovate.rtc.stun;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * Prometheus {@link Collector} that builds the per target metrics when they are scraped from
+ * the state each {@link SimpleStunClient} and {@link HealthTracker} already keep, so sending and
+ * completing probes does no metrics work at all.
+ */
+public class StunCollector extends Collector {
+  private static final List<String> LABELS = Arrays.asList("ip", "port");
+  private static final List<String> QUANTILE_LABELS = Arrays.asList("ip", "port", "quantile");
+  private static final double[] QUANTILES = new double[] {.5, .9, .99};
+
+  private final Collection<StunTarget> targets;
+
+  /**
+   * @param targets a live view of the targets to report on.
+   */
+  public StunCollector(Collection<StunTarget> targets) {
+    this.targets = targets;
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    CounterMetricFamily requests = new CounterMetricFamily("stun_target_requests_total",
+        "Total stun requests sent to the target.", LABELS);
+    CounterMetricFamily completed = new CounterMetricFamily("stun_target_completed_total",
+        "Total stun requests the target responded to.", LABELS);
+    CounterMetricFamily timeouts = new CounterMetricFamily("stun_target_timeouts_total",
+        "Total stun requests to the target that timed out.", LABELS);
+    GaugeMetricFamily currentLatency = new GaugeMetricFamily("stun_target_current_latency_seconds",
+        "Average latency of the requests in the current stats window.", LABELS);
+    GaugeMetricFamily totalLatency = new GaugeMetricFamily("stun_target_total_latency_seconds",
+        "Average latency of every completed request.", LABELS);
+    GaugeMetricFamily latencyQuantile = new GaugeMetricFamily("stun_target_latency_quantile_seconds",
+        "Latency quantiles of the requests in the current stats window.", QUANTILE_LABELS);
+    GaugeMetricFamily currentFailed = new GaugeMetricFamily("stun_target_current_failed_ratio",
+        "Ratio of failed requests in the current stats window.", LABELS);
+    GaugeMetricFamily totalFailed = new GaugeMetricFamily("stun_target_total_failed_ratio",
+        "Ratio of failed requests out of every request.", LABELS);
+    GaugeMetricFamily up = new GaugeMetricFamily("stun_target_up",
+        "Health state of the target, 1 if up 0 if down.", LABELS);
+    GaugeMetricFamily ewmaLatency = new GaugeMetricFamily("stun_target_ewma_latency_seconds",
+        "EWMA latency used for the targets health.", LABELS);
+    GaugeMetricFamily ewmaFailed = new GaugeMetricFamily("stun_target_ewma_failed_ratio",
+        "EWMA failed ratio used for the targets health.", LABELS);
+    GaugeMetricFamily consecutiveFailures = new GaugeMetricFamily("stun_target_consecutive_failures",
+        "Number of requests in a row to the target that have timed out.", LABELS);
+
+    for(StunTarget st: targets) {
+      SimpleStunClient ssc = st.client;
+      List<String> labels = Arrays.asList(st.address.getAddress().getHostAddress(), Integer.toString(st.address.getPort()));
+      requests.addMetric(labels, ssc.totalRequests());
+      completed.addMetric(labels, ssc.totalCompletedRequests());
+      timeouts.addMetric(labels, ssc.totalFailedRequests());
+      currentLatency.addMetric(labels, ssc.currentLatencyAvg()/MILLISECONDS_PER_SECOND);
+      totalLatency.addMetric(labels, ssc.totalLatencyAvg()/MILLISECONDS_PER_SECOND);
+      double[] quantiles = ssc.currentLatencyPercentiles(QUANTILES);
+      for(int i=0; i<QUANTILES.length; i++) {
+        latencyQuantile.addMetric(Arrays.asList(labels.get(0), labels.get(1), Double.toString(QUANTILES[i])),
+            quantiles[i]/MILLISECONDS_PER_SECOND);
+      }
+      currentFailed.addMetric(labels, ssc.currentFailedPCT());
+      totalFailed.addMetric(labels, ssc.totalFailedPCT());
+      up.addMetric(labels, st.health.isUp() ? 1 : 0);
+      ewmaLatency.addMetric(labels, st.health.getEwmaLatency()/MILLISECONDS_PER_SECOND);
+      ewmaFailed.addMetric(labels, st.health.getEwmaLoss());
+      consecutiveFailures.addMetric(labels, st.health.getConsecutiveFailures());
+    }
+
+    List<MetricFamilySamples> mfs = new ArrayList<>();
+    mfs.add(requests);
+    mfs.add(completed);
+    mfs.add(timeouts);
+    mfs.add(currentLatency);
+    mfs.add(totalLatency);
+    mfs.add(latencyQuantile);
+    mfs.add(currentFailed);
+    mfs.add(totalFailed);
+    mfs.add(up);
+    mfs.add(ewmaLatency);
+    mfs.add(ewmaFailed);
+    mfs.add(consecutiveFailures);
+    return mfs;
+  }
+}
@@ -1,25 +1,41 @@
 package com.ecovate.rtc.stun;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.concurrent.PrioritySchedulerService;
+import org.threadly.concurrent.SingleThreadScheduler;
+import org.threadly.concurrent.TaskPriority;
 import org.threadly.litesockets.ThreadedSocketExecuter;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import org.threadly.litesockets.protocols.http.request.HTTPRequestHeader;
 import org.threadly.litesockets.protocols.http.response.HTTPResponse;
 import org.threadly.litesockets.protocols.http.response.HTTPResponseBuilder;
 import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
@@ -28,11 +44,12 @@ import org.threadly.litesockets.server.http.HTTPServer;
 import org.threadly.litesockets.server.http.HTTPServer.BodyFuture;
 import org.threadly.litesockets.server.http.HTTPServer.ResponseWriter;
 import org.threadly.litesockets.utils.IOUtils;
-import org.threadly.util.Clock;
 import org.threadly.util.ExceptionUtils;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.common.TextFormat;
@@ -48,76 +65,301 @@ public class StunHTTP {
   private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
   private static final HTTPResponse BAD_RESPONSE = new HTTPResponseBuilder().setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close").setResponseCode(HTTPResponseCode.BadRequest).build();
   private static final HTTPResponse SimpleResponse = new HTTPResponseBuilder().setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close").setResponseCode(HTTPResponseCode.OK).build();
+  private static final HTTPResponse NOT_FOUND_RESPONSE = new HTTPResponseBuilder().setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0").setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close").setResponseCode(HTTPResponseCode.NotFound).build();
+  private static final String TARGET_STATUS_PREFIX = "/stun_status/";
+  private static final String BEST_SERVERS_PATH = "/best_servers";
+  private static final String HISTORY_PATH = "/history";
+  private static final String ADMIN_TARGETS_PATH = "/admin/targets";
+  private static final String CLUSTER_PREFIX = "/cluster/";
+  private static final String CLUSTER_STATUS_PATH = "/cluster/stun_status";
+  private static final String CLUSTER_MEMBERS_PATH = "/cluster/members";
+  private static final long DEFAULT_HISTORY_RANGE = 3600000;
+  private static final long DEFAULT_HISTORY_STEP = 60000;
+  private static final int DEFAULT_STUN_PORT = 3478;
+  private static final String IPV4_OCTET = "(25[0-5]|2[0-4]\\d|[01]?\\d?\\d)";
+  private static final Pattern IPV4_LITERAL = Pattern.compile("("+IPV4_OCTET+"\\.){3}"+IPV4_OCTET);
+  private static final Pattern IPV6_LITERAL = Pattern.compile("[0-9A-Fa-f:.]*:[0-9A-Fa-f:.]*");
   
-  private final PriorityScheduler PS = new PriorityScheduler(3);
-  private final ThreadedSocketExecuter tse = new ThreadedSocketExecuter(PS, 100, 1);
-  private final ConcurrentHashMap<InetSocketAddress, SimpleStunClient> clientList = new ConcurrentHashMap<>();
+  private final PrioritySchedulerService PS;
+  private final boolean ownsScheduler;
+  private final StunClock clock;
+  private final SimpleStunClient.TransportFactory transports;
+  private final ThreadedSocketExecuter tse;
+  private final ConcurrentHashMap<InetSocketAddress, StunTarget> clientList = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<InetSocketAddress, StunStats> stats = new ConcurrentHashMap<>();
+  private final Set<InetSocketAddress> dirty = ConcurrentHashMap.newKeySet();
+  private final Set<InetSocketAddress> failingTargets = ConcurrentHashMap.newKeySet();
+  private final ConcurrentHashMap<String, StunResponse> targetResponses = new ConcurrentHashMap<>();
+  private final Set<String> dirtyHosts = ConcurrentHashMap.newKeySet();
+  private final ConcurrentHashMap<String, Set<String>> dnsNameHosts = new ConcurrentHashMap<>();
+  private final AtomicBoolean updateQueued = new AtomicBoolean(false);
   private final InetSocketAddress listenAddress;
+  private final List<InetAddress> probeBindAddresses;
   private final HTTPServer httpServer;
-  private final List<InetSocketAddress> remoteStunServers;
-  private final Runnable checkDNSRunner = ()->checkDNS();
+  private final HTTPServer adminServer;
+  private final List<TargetSource> sources;
+  private final AdminTargetSource admin;
+  private final TargetRegistry registry;
   private final Runnable doChecksRunner = ()->doChecks();
   private final Runnable statusRunner = ()->updateStats();
+  private final Runnable historyRunner = ()->cleanupHistory();
+  private final Runnable snapshotRunner = ()->writeSnapshot();
+  private final Runnable dispatchSampler = ()->sampleDispatchLag();
   private final int delay;
   private final int cached;
-  private final int maxLatency;
-  private final double failed;
+  private final HealthConfig healthConfig;
+  private final TargetRanking ranking;
+  private final ProbeHistory history;
+  private final StateSnapshot snapshot;
+  private final StunCollector collector;
+  private final DnsRecords dnsRecords;
+  private final DnsResponder dnsResponder;
+  private final PushExporter exporter;
+  private final Cluster cluster;
+  private final Object targetLock = new Object();
   private volatile StunResponse response;
-  private volatile long lastBad = Clock.lastKnownForwardProgressingMillis()-120000;
+  private volatile StunResponse bestResponse;
+  private volatile StunResponse summaryResponse;
+  private HTTPResponseCode lastCode = null;
+  private boolean lastUntrustworthy = false;
+  private long nextCheck = -1;
 
-  public StunHTTP(InetSocketAddress listenAddress, List<InetSocketAddress> remoteStunServers, int delay, int cached, int maxLatency, double failed) throws IOException {
-    this.tse.start();
-    this.remoteStunServers = remoteStunServers;
+  public StunHTTP(InetSocketAddress listenAddress, List<InetAddress> probeBindAddresses, List<TargetSource> sources, int delay, 
+      int cached, HealthConfig healthConfig, TargetRanking ranking, ProbeHistory history, StateSnapshot snapshot, 
+      InetSocketAddress dnsAddress, DnsRecords dnsRecords, PushExporter exporter, Cluster cluster) throws IOException {
+    this(StunClock.SYSTEM, new PriorityScheduler(3), true, null, listenAddress, probeBindAddresses, sources, delay, 
+        cached, healthConfig, ranking, history, snapshot, dnsAddress, dnsRecords, exporter, cluster);
+  }
+
+  /**
+   * Creates a StunHTTP that runs on the given clock and scheduler, ie a {@link SimulatedClock}.
+   *
+   * @param transports creates the {@link SimpleStunClient.Transport} for each target, null to probe over UDP.
+   * @param listenAddress the address for the HTTP server, null to not start one.
+   */
+  public StunHTTP(StunClock clock, PrioritySchedulerService scheduler, SimpleStunClient.TransportFactory transports, 
+      InetSocketAddress listenAddress, List<InetAddress> probeBindAddresses, List<TargetSource> sources, int delay, 
+      int cached, HealthConfig healthConfig, TargetRanking ranking, ProbeHistory history, StateSnapshot snapshot, 
+      InetSocketAddress dnsAddress, DnsRecords dnsRecords, PushExporter exporter, Cluster cluster) throws IOException {
+    this(clock, scheduler, false, transports, listenAddress, probeBindAddresses, sources, delay, 
+        cached, healthConfig, ranking, history, snapshot, dnsAddress, dnsRecords, exporter, cluster);
+  }
+
+  private StunHTTP(StunClock clock, PrioritySchedulerService scheduler, boolean ownsScheduler, 
+      SimpleStunClient.TransportFactory transports, InetSocketAddress listenAddress, List<InetAddress> probeBindAddresses, 
+      List<TargetSource> sources, int delay, int cached, HealthConfig healthConfig, TargetRanking ranking, 
+      ProbeHistory history, StateSnapshot snapshot, InetSocketAddress dnsAddress, DnsRecords dnsRecords, 
+      PushExporter exporter, Cluster cluster) throws IOException {
+    this.clock = clock;
+    this.PS = scheduler;
+    this.ownsScheduler = ownsScheduler;
+    this.transports = transports;
+    this.admin = adminSource(sources);
+    InetSocketAddress adminAddress = admin == null ? null : admin.getListenAddress();
+    if(transports == null || listenAddress != null || adminAddress != null || dnsAddress != null) {
+      this.tse = new ThreadedSocketExecuter(PS, 100, 1);
+      this.tse.start();
+    } else {
+      this.tse = null;
+    }
+    this.sources = sources;
+    this.registry = new TargetRegistry(new TargetRegistry.Listener() {
+      @Override
+      public void targetAdded(InetSocketAddress address) {
+        synchronized(targetLock) {
+          if(!clientList.containsKey(address) && owns(address)) {
+            addTarget(address, true);
+          }
+        }
+      }
+
+      @Override
+      public void targetRemoved(InetSocketAddress address) {
+        synchronized(targetLock) {
+          removeTarget(address);
+        }
+      }
+
+      @Override
+      public void hostChanged(String host) {
+        indexDnsName(host);
+        dirtyHosts.add(host);
+      }
+    });
     this.listenAddress = listenAddress;
+    this.probeBindAddresses = probeBindAddresses;
     if(delay >= 1000) {
       this.delay = delay;
     } else {
       this.delay = 5000;
     }
-    if(maxLatency > 20) {
-      this.maxLatency = maxLatency;
-    } else {
-      this.maxLatency = 20;
-    }
     if(cached > 5) {
       this.cached = cached;
     } else {
       this.cached = 5;
     }
-    if(failed > 0.0) {
-      this.failed = failed;
+    this.healthConfig = healthConfig;
+    this.ranking = ranking;
+    this.history = history;
+    this.snapshot = snapshot;
+    this.dnsRecords = dnsRecords;
+    this.exporter = exporter;
+    this.cluster = cluster;
+    this.collector = new StunCollector(clientList.values()).register();
+    this.response = new StunResponse(HTTPResponseCode.OK, "");
+    this.bestResponse = new StunResponse(HTTPResponseCode.OK, GSON.toJson(Collections.emptyList()));
+    this.summaryResponse = new StunResponse(HTTPResponseCode.OK, GSON.toJson(clusterSummary()));
+    if(snapshot != null) {
+      restoreSnapshot();
+    }
+    if(listenAddress != null) {
+      this.httpServer = new HTTPServer(tse, listenAddress.getAddress().getHostAddress(), listenAddress.getPort());
+      this.httpServer.setHandler((x,y,z)->handler(x,y,z));
+      this.httpServer.start();
+    } else {
+      this.httpServer = null;
+    }
+    if(adminAddress != null) {
+      this.adminServer = new HTTPServer(tse, adminAddress.getAddress().getHostAddress(), adminAddress.getPort());
+      this.adminServer.setHandler((x,y,z)->adminHandler(x,y,z));
+      this.adminServer.start();
+    } else {
+      this.adminServer = null;
+    }
+    if(dnsAddress != null && dnsRecords != null) {
+      this.dnsResponder = new DnsResponder(tse, dnsAddress, dnsRecords);
+      this.dnsResponder.start();
     } else {
-      this.failed = 0.0;
-    }
-    this.response = new StunResponse(
-        new HTTPResponseBuilder()
-        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(0))
-        .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
-        .setResponseCode(HTTPResponseCode.OK)
-        .build(),
-        "");
-    this.httpServer = new HTTPServer(tse, listenAddress.getAddress().getHostAddress(), listenAddress.getPort());
-    this.httpServer.setHandler((x,y,z)->handler(x,y,z));
-    this.httpServer.start();
-    checkDNSRunner.run();
+      this.dnsResponder = null;
+    }
+    if(exporter != null) {
+      exporter.start();
+    }
+    for(TargetSource source: sources) {
+      source.start(registry);
+    }
+    rebalanceTargets();
+    if(cluster != null) {
+      cluster.setListener((live)->PS.execute(()->rebalanceTargets()));
+      cluster.start();
+    }
     PS.scheduleAtFixedRate(statusRunner, 1000, 1000);
-    PS.scheduleAtFixedRate(checkDNSRunner, 7000, 5000);
     PS.scheduleAtFixedRate(doChecksRunner, 500, this.delay);
+    if(tse != null && transports == null) {
+      PS.scheduleAtFixedRate(dispatchSampler, 1000, 1000);
+    }
+    if(history != null) {
+      PS.scheduleAtFixedRate(historyRunner, 60000, 600000, TaskPriority.Low);
+    }
+    if(snapshot != null) {
+      PS.scheduleAtFixedRate(snapshotRunner, StateSnapshot.DEFAULT_INTERVAL, StateSnapshot.DEFAULT_INTERVAL, TaskPriority.Low);
+    }
     log.info("Server Started.");
   }
 
+  /**
+   * Stops probing and shuts down the HTTP server, DNS responder, target sources and history.
+   */
+  public void stop() {
+    for(TargetSource source: sources) {
+      source.stop();
+    }
+    PS.remove(statusRunner);
+    PS.remove(doChecksRunner);
+    PS.remove(historyRunner);
+    PS.remove(snapshotRunner);
+    PS.remove(dispatchSampler);
+    if(httpServer != null) {
+      httpServer.stop();
+    }
+    if(adminServer != null) {
+      adminServer.stop();
+    }
+    if(dnsResponder != null) {
+      dnsResponder.stop();
+    }
+    if(exporter != null) {
+      exporter.stop();
+    }
+    if(cluster != null) {
+      cluster.stop();
+    }
+    for(StunTarget st: clientList.values()) {
+      st.client.stop();
+    }
+    clientList.clear();
+    if(history != null) {
+      history.close();
+    }
+    CollectorRegistry.defaultRegistry.unregister(collector);
+    if(tse != null) {
+      tse.stop();
+    }
+    if(ownsScheduler) {
+      ((PriorityScheduler)PS).shutdownNow();
+    }
+    log.info("Server Stopped.");
+  }
+
+  /**
+   * @return a live view of the targets being probed.
+   */
+  Collection<StunTarget> getTargets() {
+    return Collections.unmodifiableCollection(clientList.values());
+  }
+
   private void handler(HTTPRequest httpRequest, ResponseWriter rw, BodyFuture bodyListener) {
     final String path = httpRequest.getHTTPRequestHeader().getRequestPath();
-    log.info("Got HTTPRequest:{}", httpRequest.toString().replaceAll("\r\n", "\\\\r\\\\n"));
+    if(log.isDebugEnabled()) {
+      log.debug("Got HTTPRequest:{}", httpRequest.toString().replaceAll("\r\n", "\\\\r\\\\n"));
+    }
     if(path.equals("/status")) {
       rw.closeOnDone();
       rw.sendHTTPResponse(SimpleResponse);
       rw.done();
     } else if(path.equals("/stun_status")) {
-      rw.closeOnDone();
-      rw.sendHTTPResponse(response.response);
-      rw.writeBody(ByteBuffer.wrap(response.body.getBytes()));
-      rw.done();
+      response.send(rw);
+    } else if(path.equals(BEST_SERVERS_PATH)) {
+      String count = parseQuery(httpRequest.getHTTPRequestHeader()).get("count");
+      if(count == null) {
+        bestResponse.send(rw);
+      } else {
+        try {
+          new StunResponse(HTTPResponseCode.OK, GSON.toJson(ranking.top(Math.max(1, Integer.parseInt(count))))).send(rw);
+        } catch(NumberFormatException e) {
+          rw.closeOnDone();
+          rw.sendHTTPResponse(BAD_RESPONSE);
+          rw.done();
+        }
+      }
+    } else if(path.startsWith(CLUSTER_PREFIX)) {
+      if(cluster == null) {
+        rw.closeOnDone();
+        rw.sendHTTPResponse(NOT_FOUND_RESPONSE);
+        rw.done();
+      } else if(path.equals(Cluster.SUMMARY_PATH)) {
+        summaryResponse.send(rw);
+      } else if(path.equals(CLUSTER_STATUS_PATH)) {
+        clusterStatusResponse(rw);
+      } else if(path.equals(CLUSTER_MEMBERS_PATH)) {
+        new StunResponse(HTTPResponseCode.OK, GSON.toJson(cluster.getMembers())).send(rw);
+      } else {
+        rw.closeOnDone();
+        rw.sendHTTPResponse(NOT_FOUND_RESPONSE);
+        rw.done();
+      }
+    } else if(path.equals(HISTORY_PATH)) {
+      historyResponse(httpRequest, rw);
+    } else if(path.startsWith(TARGET_STATUS_PREFIX)) {
+      String key = requestKey(path.substring(TARGET_STATUS_PREFIX.length()));
+      StunResponse sr = key == null ? null : targetResponses.get(key);
+      if(sr != null) {
+        sr.send(rw);
+      } else {
+        rw.closeOnDone();
+        rw.sendHTTPResponse(NOT_FOUND_RESPONSE);
+        rw.done();
+      }
     } else if(path.equals("/metrics")){
       metricsResponse(httpRequest, rw, bodyListener);
     } else {
@@ -127,85 +369,610 @@ public class StunHTTP {
     }
   }
 
-  private void updateStats() {
-    HashMap<InetSocketAddress, StunStats> tmp = new HashMap<>();
-    HTTPResponseCode rc = HTTPResponseCode.OK;
-   if(clientList.size() == 0) {
+  /**
+   * Recomputes the stats for any targets that have had a probe finish since the last run and
+   * only rebuilds the /stun_status response if something actually changed.
+   */
+  private synchronized void updateStats() {
+    updateQueued.set(false);
+    boolean changed = false;
+    boolean rankChanged = false;
+    if(clientList.size() == 0) {
       log.info("No Stun IPs found for the given servers!");
-      lastBad = Clock.lastKnownForwardProgressingMillis();
-    }
-    for(Map.Entry<InetSocketAddress, SimpleStunClient> map: clientList.entrySet()) {
-      SimpleStunClient ssc = map.getValue();
-      if(ssc.totalRequests() >= 10) {
-        if(ssc.currentLatencyAvg() > maxLatency || ssc.currentFailedPCT() > failed) {
-          log.info("Got failure:{}:{},{}:{}", ssc.currentLatencyAvg(), maxLatency, ssc.currentFailedPCT(), failed);
-          lastBad = Clock.lastKnownForwardProgressingMillis();
+    }
+    final long now = clock.epochMillis();
+    final boolean untrustworthy = PipelineStats.update(clock.millis(), healthConfig.getMaxPipelineLag());
+    if(untrustworthy != lastUntrustworthy) {
+      log.warn("Probe pipeline is {}, measurements are {}trustworthy", untrustworthy ? "lagging" : "caught up", untrustworthy ? "un" : "");
+      lastUntrustworthy = untrustworthy;
+      dirty.addAll(clientList.keySet());
+    }
+    Iterator<InetSocketAddress> it = dirty.iterator();
+    while(it.hasNext()) {
+      InetSocketAddress isa = it.next();
+      it.remove();
+      StunTarget st = clientList.get(isa);
+      if(st == null) {
+        failingTargets.remove(isa);
+        targetResponses.remove(targetKey(isa));
+        rankChanged |= ranking.remove(isa);
+        changed |= stats.remove(isa) != null;
+        continue;
+      }
+      SimpleStunClient ssc = st.client;
+      if(ssc.totalRequests() > 0) {
+        if(st.health.isUp()) {
+          failingTargets.remove(isa);
+        } else {
+          failingTargets.add(isa);
         }
         StunStats s = new StunStats(ssc.currentLatencyAvg(), ssc.currentFailedPCT(), ssc.currentCompletedPCT(), 
             ssc.totalLatencyAvg(), 
             ssc.totalFailedPCT(),
             ssc.totalCompletedPCT(),
-            ssc.totalRequests());
-        tmp.put(map.getKey(), s);
+            ssc.totalRequests(),
+            st.health,
+            st.windows.getAll(now),
+            untrustworthy);
+        stats.put(isa, s);
+        targetResponses.put(targetKey(isa), 
+            new StunResponse(st.health.isUp() ? HTTPResponseCode.OK : HTTPResponseCode.ServiceUnavailable, GSON.toJson(s)));
+        dirtyHosts.addAll(registry.getTargetHosts(isa));
+        rankChanged |= ranking.update(st);
+        changed = true;
+      }
+    }
+    Set<String> dnsNames = new HashSet<>();
+    Iterator<String> hit = dirtyHosts.iterator();
+    while(hit.hasNext()) {
+      String host = hit.next();
+      hit.remove();
+      updateHostResponse(host);
+      dnsNames.add(hostName(host));
+    }
+    if(dnsRecords != null) {
+      for(String name: dnsNames) {
+        updateDnsRecords(name);
       }
     }
-    String body = GSON.toJson(tmp);
-    if(Clock.lastKnownForwardProgressingMillis()-lastBad < 120000) {
+    if(rankChanged) {
+      bestResponse = new StunResponse(HTTPResponseCode.OK, GSON.toJson(ranking.top(ranking.getDefaultCount())));
+    }
+    HTTPResponseCode rc = HTTPResponseCode.OK;
+    if(clientList.size() == 0 || !failingTargets.isEmpty()) {
       rc = HTTPResponseCode.InternalServerError;
     }
+    if(!changed && rc == lastCode) {
+      return;
+    }
+    lastCode = rc;
+    response = new StunResponse(rc, GSON.toJson(stats));
+    if(cluster != null) {
+      summaryResponse = new StunResponse(HTTPResponseCode.OK, GSON.toJson(clusterSummary()));
+    }
+  }
 
-    response = new StunResponse(
-        new HTTPResponseBuilder()
-        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(body.length()))
-        .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
-        .setResponseCode(rc)
-        .build(),
-        body);
+  /**
+   * Rebuilds the /stun_status/{host}:{port} response, this is a 200 as long as at least one
+   * of the IPs the host resolves to is up.  The stats for each IP are under "targets" and the
+   * stats for each address family under "families".
+   */
+  private void updateHostResponse(String host) {
+    Set<InetSocketAddress> ias = registry.getHostTargets(host);
+    if(ias.isEmpty()) {
+      targetResponses.remove(host);
+      return;
+    }
+    TreeMap<String, StunStats> hostStats = new TreeMap<>();
+    TreeMap<String, FamilyStats> families = new TreeMap<>();
+    HTTPResponseCode rc = HTTPResponseCode.ServiceUnavailable;
+    for(InetSocketAddress isa: ias) {
+      StunStats s = stats.get(isa);
+      StunTarget st = clientList.get(isa);
+      if(s != null && st != null) {
+        hostStats.put(targetKey(isa), s);
+        families.computeIfAbsent(isa.getAddress() instanceof Inet6Address ? "ipv6" : "ipv4", 
+            (k)->new FamilyStats()).add(st.client, st.health);
+        if(st.health.isUp()) {
+          rc = HTTPResponseCode.OK;
+        }
+      }
+    }
+    for(FamilyStats fs: families.values()) {
+      fs.finish();
+    }
+    TreeMap<String, Object> body = new TreeMap<>();
+    body.put("targets", hostStats);
+    body.put("families", families);
+    targetResponses.put(host, new StunResponse(rc, GSON.toJson(body)));
+  }
+
+  /**
+   * Keeps track of the host keys (one per port) each DNS name has, so a dirty name only has to
+   * look at its own hosts.  Called with the registry lock held.
+   */
+  private void indexDnsName(String host) {
+    String name = hostName(host);
+    if(registry.getHostTargets(host).isEmpty()) {
+      dnsNameHosts.computeIfPresent(name, (k, hosts)->{
+        hosts.remove(host);
+        return hosts.isEmpty() ? null : hosts;
+      });
+    } else {
+      dnsNameHosts.computeIfAbsent(name, (k)->ConcurrentHashMap.newKeySet()).add(host);
+    }
   }
 
+  /**
+   * Rebuilds the DNS records for a stun server hostname across every port it is configured
+   * with.  Only targets that are up are given out, lowest EWMA latency first, unless every target
+   * is down in which case they are all given out rather than none.
+   */
+  private void updateDnsRecords(String name) {
+    Set<String> hosts = dnsNameHosts.get(name);
+    if(hosts == null) {
+      dnsRecords.remove(name);
+      return;
+    }
+    List<Map.Entry<InetAddress, Double>> up = new ArrayList<>();
+    List<Map.Entry<InetAddress, Double>> down = new ArrayList<>();
+    for(String host: hosts) {
+      for(InetSocketAddress isa: registry.getHostTargets(host)) {
+        StunTarget st = clientList.get(isa);
+        if(st == null || !stats.containsKey(isa)) {
+          continue;
+        }
+        Map.Entry<InetAddress, Double> e = new AbstractMap.SimpleImmutableEntry<>(isa.getAddress(), st.health.getEwmaLatency());
+        if(st.health.isUp()) {
+          up.add(e);
+        } else {
+          down.add(e);
+        }
+      }
+    }
+    List<Map.Entry<InetAddress, Double>> targets = up.isEmpty() ? down : up;
+    targets.sort(Map.Entry.comparingByValue());
+    LinkedHashSet<InetAddress> addresses = new LinkedHashSet<>();
+    for(Map.Entry<InetAddress, Double> e: targets) {
+      addresses.add(e.getKey());
+    }
+    if(dnsRecords.setRecords(name, new ArrayList<>(addresses))) {
+      log.debug("Updated DNS records for {}:{}", name, addresses);
+    }
+  }
+
+  /**
+   * Picks the address to send probes to a target from.  This is the first probe bind address in
+   * the same family as the target, then the listen address if it is in the same family, and
+   * otherwise the wildcard address for the targets family.
+   */
+  static InetAddress bindAddressFor(List<InetAddress> bindAddresses, InetAddress listenAddress, InetAddress target) {
+    boolean ipv6 = target instanceof Inet6Address;
+    for(InetAddress ia: bindAddresses) {
+      if((ia instanceof Inet6Address) == ipv6) {
+        return ia;
+      }
+    }
+    if(listenAddress != null && (listenAddress instanceof Inet6Address) == ipv6) {
+      return listenAddress;
+    }
+    try {
+      return InetAddress.getByAddress(new byte[ipv6 ? 16 : 4]);
+    } catch(UnknownHostException e) {
+      throw ExceptionUtils.makeRuntime(e);
+    }
+  }
+
+  /**
+   * @return the hostname part of a host key.
+   */
+  static String hostName(String hostKey) {
+    int idx = hostKey.lastIndexOf(':');
+    return idx < 0 ? hostKey : hostKey.substring(0, idx);
+  }
+
+  /**
+   * @return the key used for an IP target, {ip}:{port} with IPv6 addresses in brackets.
+   */
+  static String targetKey(InetSocketAddress isa) {
+    InetAddress ia = isa.getAddress();
+    if(ia instanceof Inet6Address) {
+      return "["+ia.getHostAddress()+"]:"+isa.getPort();
+    }
+    return ia.getHostAddress()+":"+isa.getPort();
+  }
+
+  /**
+   * @return the key used for a configured stun server hostname, {hostname}:{port}.
+   */
+  static String hostKey(InetSocketAddress isa) {
+    return isa.getHostString().toLowerCase()+":"+isa.getPort();
+  }
+
+  /**
+   * Turns the tail of a /stun_status/ request path into a target/host key, defaulting the port
+   * if none was given.  IP literals are parsed so any way of writing an IPv6 address (ie.
+   * "[2001:db8::1]") gives the same key as {@link #targetKey(InetSocketAddress)}.  Only values that
+   * are numerically an IP are parsed, so this never does a DNS lookup.
+   * 
+   * @return the key, or null if the value looks like an IP literal but is not one.
+   */
+  static String requestKey(String target) {
+    String host = target.trim();
+    int port = DEFAULT_STUN_PORT;
+    int idx = host.lastIndexOf(':');
+    // a bare IPv6 address has more than one ':' and no port.
+    if(idx >= 0 && idx > host.lastIndexOf(']') && (host.startsWith("[") || host.indexOf(':') == idx)) {
+      try {
+        port = Integer.parseInt(host.substring(idx+1));
+        host = host.substring(0, idx);
+      } catch(NumberFormatException e) {
+        return target.toLowerCase();
+      }
+    }
+    String literal = host;
+    if(host.startsWith("[") && host.endsWith("]")) {
+      literal = host.substring(1, host.length()-1);
+    } else if(host.indexOf(':') < 0 && !IPV4_LITERAL.matcher(host).matches()) {
+      return host.toLowerCase()+":"+port;
+    }
+    try {
+      if(IPV4_LITERAL.matcher(literal).matches()) {
+        return targetKey(new InetSocketAddress(InetAddress.getByName(literal), port));
+      } else if(IPV6_LITERAL.matcher(literal).matches()) {
+        // brackets make InetAddress fail rather than fall back to a lookup if it does not parse.
+        return targetKey(new InetSocketAddress(InetAddress.getByName("["+literal+"]"), port));
+      }
+    } catch(UnknownHostException e) {
+      // not a valid literal
+    }
+    return null;
+  }
+
+  /**
+   * @return the request's query parameters, URL decoded.
+   */
+  static Map<String, String> parseQuery(HTTPRequestHeader header) {
+    return decodeQuery(header.getRequestQuery());
+  }
+
+  /**
+   * URL decodes query parameters, a parameter that does not decode is kept as it was.
+   */
+  static Map<String, String> decodeQuery(Map<String, String> query) {
+    HashMap<String, String> params = new HashMap<>();
+    if(query == null) {
+      return params;
+    }
+    for(Map.Entry<String, String> kv: query.entrySet()) {
+      params.put(decode(kv.getKey()), kv.getValue() == null ? "" : decode(kv.getValue()));
+    }
+    return params;
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch(UnsupportedEncodingException | IllegalArgumentException e) {
+      return s;
+    }
+  }
+
+  /**
+   * Called as each probe finishes, feeds the targets {@link ProbeWindows} and {@link HealthTracker} and marks the target dirty.  
+   * If the probe changed the targets health state a recompute is triggered right away instead of 
+   * waiting for the next statusRunner tick.
+   */
+  private void onProbe(StunTarget st, long startTime, long rtt) {
+    dirty.add(st.address);
+    final long time = clock.epochMillis();
+    // a probe finishing as its target is removed would reopen the targets log.
+    if(history != null && clientList.get(st.address) == st) {
+      history.record(st.key, time, rtt);
+    }
+    st.windows.record(time, rtt);
+    if(exporter != null) {
+      exporter.offer(st.key, time, rtt);
+    }
+    if(st.health.onProbe(startTime, rtt, clock.millis(), st.windows)) {
+      log.info("StunClient:{} is now {}, ewmaLatency:{} ewmaLoss:{} consecutiveFailures:{}", 
+          st.address, st.health.getState(), st.health.getEwmaLatency(), st.health.getEwmaLoss(), st.health.getConsecutiveFailures());
+      if(updateQueued.compareAndSet(false, true)) {
+        PS.execute(statusRunner);
+      }
+    }
+  }
+
+  /**
+   * Sends a request to every target, recording how far behind when each one is sent.
+   */
   private void doChecks() {
-    for(SimpleStunClient ssc: clientList.values()) {
-      ssc.sendRequest();
+    final long due = nextCheck < 0 ? clock.millis() : nextCheck;
+    nextCheck = due+delay;
+    for(StunTarget st: clientList.values()) {
+      st.client.sendRequest();
+      PipelineStats.observeMillis(PipelineStats.Stage.SCHEDULE, clock.millis()-due);
     }
   }
 
-  private void checkDNS() {
-    Set<InetSocketAddress> ias = new HashSet<InetSocketAddress>();
-    for(InetSocketAddress isa: remoteStunServers) {
-      try { 
-        for(InetAddress ia: InetAddress.getAllByName(isa.getHostString())) {
-          ias.add(new InetSocketAddress(ia, isa.getPort()));
+  /**
+   * Times a no-op task through the socket executer's scheduler, which reads are dispatched on.
+   */
+  private void sampleDispatchLag() {
+    final long start = System.nanoTime();
+    tse.getThreadScheduler().execute(()->PipelineStats.observe(PipelineStats.Stage.READ_DISPATCH, System.nanoTime()-start));
+  }
+
+  /**
+   * Creates and starts a client for the target.
+   * 
+   * @param warmup if true the current stats window is filled with requests spaced 50ms apart.
+   * @return the new target or null if it could not be created or already existed.
+   */
+  private StunTarget addTarget(InetSocketAddress ia, boolean warmup) {
+    try {
+      SimpleStunClient ssc;
+      if(transports == null) {
+        InetAddress bindAddress = bindAddressFor(probeBindAddresses, 
+            listenAddress == null ? null : listenAddress.getAddress(), ia.getAddress());
+        ssc = new SimpleStunClient(tse, bindAddress, 0, ia.getAddress(), ia.getPort(), cached);
+      } else {
+        ssc = new SimpleStunClient(clock, PS, transports.create(ia), cached);
+      }
+      StunTarget st = new StunTarget(ia, ssc, healthConfig);
+      ssc.setProbeListener((c, startTime, rtt)->onProbe(st, startTime, rtt));
+      ssc.start();
+      if(clientList.putIfAbsent(ia, st) == null) {
+        log.info("Added new StunClient:{}:{}", ia, ia.getPort());
+        if(warmup) {
+          for(int i=0; i<cached; i+=1) {
+            PS.schedule(()->ssc.sendRequest(), i*50);
+          }
         }
-      } catch (UnknownHostException e) {
-        log.error("Problem looking up address for:{}\n{}", ias, ExceptionUtils.stackToString(e));
+        return st;
       }
+      ssc.stop();
+    } catch (IOException e) {
+      log.error("Problem creating StunClient for:{}\n{}", ia, ExceptionUtils.stackToString(e));
     }
-    for(InetSocketAddress ia: ias) {
-      if(!clientList.containsKey(ia)) {
-        try {
-          SimpleStunClient ssc = new SimpleStunClient(tse, listenAddress.getAddress(), 0, ia.getAddress(), ia.getPort(), cached);
-          ssc.start();
-          if(clientList.putIfAbsent(ia, ssc) == null) {
-            log.info("Added new StunClient:{}:{}", ia, ia.getPort());
-            for(int i=0; i<cached; i+=1) {
-              PS.schedule(()->ssc.sendRequest(), i*50);
-            }
+    return null;
+  }
+
+  /**
+   * Recreates the targets saved in the snapshot with their stats windows and health state so
+   * /stun_status is meaningful before any new requests have been sent.  Restored targets are
+   * not warmed up, and are removed by the next DNS check if they are no longer configured.
+   */
+  private void restoreSnapshot() {
+    try {
+      int restored = 0;
+      for(StateSnapshot.TargetState ts: snapshot.read()) {
+        StunTarget st = addTarget(ts.getAddress(), false);
+        if(st != null) {
+          ts.apply(st);
+          dirty.add(st.address);
+          restored++;
+        }
+      }
+      log.info("Restored {} targets from snapshot:{}", restored, snapshot.getFile());
+    } catch (IOException | RuntimeException e) {
+      log.error("Problem reading snapshot:{}\n{}", snapshot.getFile(), ExceptionUtils.stackToString(e));
+    }
+    updateStats();
+  }
+
+  private void cleanupHistory() {
+    history.cleanup(clock.epochMillis());
+  }
+
+  private void writeSnapshot() {
+    try {
+      snapshot.write(clientList.values());
+    } catch (IOException e) {
+      log.error("Problem writing snapshot:{}\n{}", snapshot.getFile(), ExceptionUtils.stackToString(e));
+    }
+  }
+
+  private void removeTarget(InetSocketAddress ia) {
+    StunTarget st = clientList.remove(ia);
+    if(st != null) {
+      log.info("Removed StunClient:{}:{}", ia, ia.getPort());
+      st.client.stop();
+      if(history != null) {
+        history.close(st.key);
+      }
+      dirty.add(ia);
+    }
+  }
+
+  /**
+   * Removes any targets that none of the sources know about (ie. restored from the snapshot) or
+   * that another cluster node now owns, and adds any this node has just become the owner of.
+   */
+  private void rebalanceTargets() {
+    synchronized(targetLock) {
+      for(InetSocketAddress ia: new ArrayList<>(clientList.keySet())) {
+        if(!registry.contains(ia) || !owns(ia)) {
+          removeTarget(ia);
+        }
+      }
+      if(cluster != null) {
+        for(InetSocketAddress ia: registry.getTargets()) {
+          if(!clientList.containsKey(ia) && owns(ia)) {
+            addTarget(ia, true);
           }
-        } catch (IOException e) {
-          log.error("Problem looking up address for:{}\n{}", ias, ExceptionUtils.stackToString(e));
         }
       }
     }
-    Set<InetSocketAddress> clcs = new HashSet<>(clientList.keySet());
-    for(InetSocketAddress ia: clcs) {
-      if(!ias.contains(ia)) {
-        log.info("Removed StunClient:{}:{}", ia, ia.getPort());
-        SimpleStunClient ssc = clientList.remove(ia);
-        ssc.stop();
+  }
+
+  /**
+   * @return true if this node should probe the target, always true outside of cluster mode.
+   */
+  private boolean owns(InetSocketAddress ia) {
+    return cluster == null || cluster.owns(targetKey(ia));
+  }
+
+  /**
+   * @return the local target stats keyed by target key.
+   */
+  private TreeMap<String, StunStats> localStats() {
+    TreeMap<String, StunStats> local = new TreeMap<>();
+    for(Map.Entry<InetSocketAddress, StunStats> e: stats.entrySet()) {
+      local.put(targetKey(e.getKey()), e.getValue());
+    }
+    return local;
+  }
+
+  /**
+   * The body of {@value Cluster#SUMMARY_PATH} that peers poll and cache.
+   */
+  private Map<String, Object> clusterSummary() {
+    TreeMap<String, Object> summary = new TreeMap<>();
+    summary.put("node", cluster == null ? null : cluster.getSelf());
+    summary.put("targets", localStats());
+    return summary;
+  }
+
+  /**
+   * Serves /cluster/stun_status, the stats for every target in the cluster merged from the
+   * peers' cached summaries.  Like /stun_status this is a 500 if any target is down.
+   */
+  private void clusterStatusResponse(ResponseWriter rw) {
+    Map<String, JsonObject> merged = cluster.aggregate(GSON.toJsonTree(localStats()).getAsJsonObject());
+    HTTPResponseCode rc = merged.isEmpty() ? HTTPResponseCode.InternalServerError : HTTPResponseCode.OK;
+    for(JsonObject stats: merged.values()) {
+      JsonElement health = stats.get("health");
+      if(health == null || !HealthTracker.State.UP.name().equals(health.getAsString())) {
+        rc = HTTPResponseCode.InternalServerError;
+      }
+    }
+    new StunResponse(rc, GSON.toJson(merged)).send(rw);
+  }
+
+  private static AdminTargetSource adminSource(List<TargetSource> sources) {
+    for(TargetSource source: sources) {
+      if(source instanceof AdminTargetSource) {
+        return (AdminTargetSource)source;
       }
     }
+    return null;
   }
-  
+
+  /**
+   * Handler for the admin listener, which only serves /admin/targets.  GET lists the servers 
+   * added through the API, POST/PUT ?target={server} adds a server and DELETE ?target={server}
+   * removes it.
+   */
+  private void adminHandler(HTTPRequest httpRequest, ResponseWriter rw, BodyFuture bodyListener) {
+    if(!httpRequest.getHTTPRequestHeader().getRequestPath().equals(ADMIN_TARGETS_PATH)) {
+      rw.closeOnDone();
+      rw.sendHTTPResponse(NOT_FOUND_RESPONSE);
+      rw.done();
+      return;
+    }
+    String requestLine = httpRequest.getHTTPRequestHeader().toString();
+    String method = requestLine.substring(0, Math.max(0, requestLine.indexOf(' '))).toUpperCase();
+    String target = parseQuery(httpRequest.getHTTPRequestHeader()).get("target");
+    try {
+      if(method.equals("GET")) {
+        List<String> servers = new ArrayList<>();
+        for(InetSocketAddress isa: admin.getServers()) {
+          servers.add(isa.getHostString()+":"+isa.getPort());
+        }
+        Collections.sort(servers);
+        new StunResponse(HTTPResponseCode.OK, GSON.toJson(servers)).send(rw);
+        return;
+      } else if(target != null && (method.equals("POST") || method.equals("PUT"))) {
+        log.info("Admin API adding target:{}", target);
+        admin.add(target);
+        new StunResponse(HTTPResponseCode.OK, "").send(rw);
+        return;
+      } else if(target != null && method.equals("DELETE")) {
+        log.info("Admin API removing target:{}", target);
+        new StunResponse(admin.remove(target) ? HTTPResponseCode.OK : HTTPResponseCode.NotFound, "").send(rw);
+        return;
+      }
+    } catch(IllegalArgumentException e) {
+      log.warn("Bad admin API target:{}", target);
+    }
+    rw.closeOnDone();
+    rw.sendHTTPResponse(BAD_RESPONSE);
+    rw.done();
+  }
+
+  /**
+   * Serves /history?target=&from=&to=&step=&format= from the targets {@link ProbeHistory}.  
+   * from/to are epoch millis and default to the last hour.  With format=raw the matching 
+   * records are streamed as is out of the mapped segments, otherwise they are downsampled 
+   * into step (default 60000) millisecond buckets.
+   */
+  private void historyResponse(HTTPRequest httpRequest, ResponseWriter rw) {
+    Map<String, String> query = parseQuery(httpRequest.getHTTPRequestHeader());
+    String target = query.get("target");
+    rw.closeOnDone();
+    if(history != null && target != null && requestKey(target) == null) {
+      rw.sendHTTPResponse(NOT_FOUND_RESPONSE);
+      rw.done();
+      return;
+    }
+    if(history == null || target == null) {
+      rw.sendHTTPResponse(history == null ? NOT_FOUND_RESPONSE : BAD_RESPONSE);
+      rw.done();
+      return;
+    }
+    try {
+      long now = clock.epochMillis();
+      long to = query.containsKey("to") ? Long.parseLong(query.get("to")) : now;
+      long from = query.containsKey("from") ? Long.parseLong(query.get("from")) : to-DEFAULT_HISTORY_RANGE;
+      long step = query.containsKey("step") ? Long.parseLong(query.get("step")) : DEFAULT_HISTORY_STEP;
+      if(step <= 0 || from > to) {
+        rw.sendHTTPResponse(BAD_RESPONSE);
+        rw.done();
+        return;
+      }
+      List<ByteBuffer> views = history.snapshot(requestKey(target), from, to);
+      if("raw".equals(query.get("format"))) {
+        List<ByteBuffer> records = ProbeHistory.matchingRecords(views, from, to);
+        long size = 0;
+        for(ByteBuffer bb: records) {
+          size += bb.remaining();
+        }
+        rw.sendHTTPResponse(new HTTPResponseBuilder()
+            .setResponseCode(HTTPResponseCode.OK)
+            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Long.toString(size))
+            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "application/octet-stream")
+            .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
+            .build());
+        for(ByteBuffer bb: records) {
+          rw.writeBody(bb);
+        }
+        rw.done();
+      } else {
+        byte[] body = GSON.toJson(ProbeHistory.downsample(views, from, to, step)).getBytes(StandardCharsets.UTF_8);
+        rw.sendHTTPResponse(new HTTPResponseBuilder()
+            .setResponseCode(HTTPResponseCode.OK)
+            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(body.length))
+            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "application/json")
+            .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
+            .build());
+        rw.writeBody(ByteBuffer.wrap(body));
+        rw.done();
+      }
+    } catch(NumberFormatException e) {
+      rw.sendHTTPResponse(BAD_RESPONSE);
+      rw.done();
+    } catch(IOException e) {
+      log.error("Problem reading history for:{}\n{}", target, ExceptionUtils.stackToString(e));
+      rw.sendHTTPResponse(new HTTPResponseBuilder()
+          .setResponseCode(HTTPResponseCode.InternalServerError)
+          .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
+          .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
+          .build());
+      rw.done();
+    }
+  }
+
   public static void metricsResponse(HTTPRequest httpRequest, ResponseWriter rw, BodyFuture bodyListener) {
     log.info("{}: processing metrics");
     rw.closeOnDone();
@@ -237,13 +1004,29 @@ public class StunHTTP {
     }
   }
 
+  /**
+   * A pre-built response, the body is encoded once so it can be served to any number of requests
+   * without doing any more work.
+   */
   private static class StunResponse {
-    HTTPResponse response;
-    String body;
+    final HTTPResponse response;
+    final ByteBuffer body;
 
-    public StunResponse(HTTPResponse r, String body) {
-      this.response = r;
-      this.body = body;
+    public StunResponse(HTTPResponseCode rc, String body) {
+      byte[] ba = body.getBytes(StandardCharsets.UTF_8);
+      this.response = new HTTPResponseBuilder()
+          .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(ba.length))
+          .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
+          .setResponseCode(rc)
+          .build();
+      this.body = ByteBuffer.wrap(ba);
+    }
+
+    void send(ResponseWriter rw) {
+      rw.closeOnDone();
+      rw.sendHTTPResponse(response);
+      rw.writeBody(body.duplicate());
+      rw.done();
     }
   }
 
@@ -252,6 +1035,7 @@ public class StunHTTP {
     DefaultExports.initialize();
     String env_servers = System.getenv("STUN_SERVERS");
     String env_listen = System.getenv("STUN_LISTEN_ADDRESS");
+    String env_probe_bind = System.getenv("STUN_PROBE_BIND_ADDRESSES");
     Integer env_delay = null;
     if(System.getenv("STUN_DELAY") != null) {
       try {
@@ -276,16 +1060,115 @@ public class StunHTTP {
         env_cached = Integer.parseInt(System.getenv("STUN_CACHED_RESULTS"));
       }catch(Exception e) {}
     }
+    Integer env_trip_count = null;
+    if(System.getenv("STUN_FAIL_TRIP_COUNT") != null) {
+      try {
+        env_trip_count = Integer.parseInt(System.getenv("STUN_FAIL_TRIP_COUNT"));
+      }catch(Exception e) {}
+    }
+    Double env_alpha = null;
+    if(System.getenv("STUN_EWMA_ALPHA") != null) {
+      try {
+        env_alpha = Double.parseDouble(System.getenv("STUN_EWMA_ALPHA"));
+      }catch(Exception e) {}
+    }
+    Integer env_recover_latency = null;
+    if(System.getenv("STUN_RECOVER_LATENCY") != null) {
+      try {
+        env_recover_latency = Integer.parseInt(System.getenv("STUN_RECOVER_LATENCY"));
+      }catch(Exception e) {}
+    }
+    Double env_recover_failpct = null;
+    if(System.getenv("STUN_RECOVER_FAILPCT") != null) {
+      try {
+        env_recover_failpct = Double.parseDouble(System.getenv("STUN_RECOVER_FAILPCT"));
+      }catch(Exception e) {}
+    }
+    Integer env_best_count = null;
+    if(System.getenv("STUN_BEST_COUNT") != null) {
+      try {
+        env_best_count = Integer.parseInt(System.getenv("STUN_BEST_COUNT"));
+      }catch(Exception e) {}
+    }
+    Double env_score_percentile = null;
+    if(System.getenv("STUN_SCORE_PERCENTILE") != null) {
+      try {
+        env_score_percentile = Double.parseDouble(System.getenv("STUN_SCORE_PERCENTILE"));
+      }catch(Exception e) {}
+    }
+    Double env_score_loss_weight = null;
+    if(System.getenv("STUN_SCORE_LOSS_WEIGHT") != null) {
+      try {
+        env_score_loss_weight = Double.parseDouble(System.getenv("STUN_SCORE_LOSS_WEIGHT"));
+      }catch(Exception e) {}
+    }
+    String env_history_dir = System.getenv("STUN_HISTORY_DIR");
+    Integer env_history_retention = null;
+    if(System.getenv("STUN_HISTORY_RETENTION") != null) {
+      try {
+        env_history_retention = Integer.parseInt(System.getenv("STUN_HISTORY_RETENTION"));
+      }catch(Exception e) {}
+    }
+    String env_targets_file = System.getenv("STUN_TARGETS_FILE");
+    String env_admin_listen = System.getenv("STUN_ADMIN_LISTEN_ADDRESS");
+    String env_dns_listen = System.getenv("STUN_DNS_LISTEN_ADDRESS");
+    Integer env_dns_ttl = null;
+    if(System.getenv("STUN_DNS_TTL") != null) {
+      try {
+        env_dns_ttl = Integer.parseInt(System.getenv("STUN_DNS_TTL"));
+      }catch(Exception e) {}
+    }
+    String env_push_address = System.getenv("STUN_PUSH_ADDRESS");
+    String env_push_protocol = System.getenv("STUN_PUSH_PROTOCOL");
+    String env_push_format = System.getenv("STUN_PUSH_FORMAT");
+    String env_push_mode = System.getenv("STUN_PUSH_MODE");
+    Integer env_push_interval = null;
+    if(System.getenv("STUN_PUSH_INTERVAL") != null) {
+      try {
+        env_push_interval = Integer.parseInt(System.getenv("STUN_PUSH_INTERVAL"));
+      }catch(Exception e) {}
+    }
+    Integer env_push_packet_size = null;
+    if(System.getenv("STUN_PUSH_PACKET_SIZE") != null) {
+      try {
+        env_push_packet_size = Integer.parseInt(System.getenv("STUN_PUSH_PACKET_SIZE"));
+      }catch(Exception e) {}
+    }
+    String env_cluster_nodes = System.getenv("STUN_CLUSTER_NODES");
+    String env_cluster_node = System.getenv("STUN_CLUSTER_NODE");
+    String env_snapshot_file = System.getenv("STUN_SNAPSHOT_FILE");
+    Integer env_snapshot_max_age = null;
+    if(System.getenv("STUN_SNAPSHOT_MAX_AGE") != null) {
+      try {
+        env_snapshot_max_age = Integer.parseInt(System.getenv("STUN_SNAPSHOT_MAX_AGE"));
+      }catch(Exception e) {}
+    }
+    String env_window_rules = System.getenv("STUN_WINDOW_RULES");
+    Integer env_max_pipeline_lag = null;
+    if(System.getenv("STUN_MAX_PIPELINE_LAG") != null) {
+      try {
+        env_max_pipeline_lag = Integer.parseInt(System.getenv("STUN_MAX_PIPELINE_LAG"));
+      }catch(Exception e) {}
+    }
+    Integer env_hold_down = null;
+    if(System.getenv("STUN_HOLD_DOWN") != null) {
+      try {
+        env_hold_down = Integer.parseInt(System.getenv("STUN_HOLD_DOWN"));
+      }catch(Exception e) {}
+    }
 
     ArgumentParser parser = ArgumentParsers.newFor("StunHTTP").build()
         .defaultHelp(true)
         .description("Tests Stun Server and reports stats");
     Argument arg_servers = parser.addArgument("--stun_servers")
-        .required(true)
+        .required(false)
         .help("Stun servers to check (ie. stun.test.com:2234,stun.test2.com:3322)");
     Argument arg_listen = parser.addArgument("--listen_address")
         .required(true)
-        .help("The IP/port to have the http service listen on (ie. 127.0.0.1:8080)  Note this IP will also be used to bind to for the stun requests!");
+        .help("The IP/port to have the http service listen on (ie. 127.0.0.1:8080)  Note this IP will also be used to bind to for the stun requests in the same family unless probe_bind_addresses is set");
+    Argument arg_probe_bind = parser.addArgument("--probe_bind_addresses")
+        .required(false)
+        .help("IPs to send the stun requests from, one per address family (ie. 10.0.0.5,2001:db8::5)");
     Argument arg_delay = parser.addArgument("-d", "--delay")
         .type(Integer.class)
         .required(false)
@@ -306,15 +1189,133 @@ public class StunHTTP {
         .required(false)
         .setDefault(100)
         .help("Number of results to keep cached for checking (Default: 100)");
+    Argument arg_trip_count = parser.addArgument("--fail_trip_count")
+        .type(Integer.class)
+        .required(false)
+        .setDefault(HealthConfig.DEFAULT_TRIP_FAILURES)
+        .help("Number of timeouts in a row that will mark a target down right away");
+    Argument arg_alpha = parser.addArgument("--ewma_alpha")
+        .type(Double.class)
+        .required(false)
+        .setDefault(HealthConfig.DEFAULT_ALPHA)
+        .help("Weight 0.01 - 1.0 given to each new sample in the EWMA latency and failurePCT");
+    Argument arg_recover_latency = parser.addArgument("--recover_latency")
+        .type(Integer.class)
+        .required(false)
+        .help("EWMA latency in milliseconds a down target must get under to recover (Default: 80% of max_latency)");
+    Argument arg_recover_failpct = parser.addArgument("--recoverFailurePCT")
+        .type(Double.class)
+        .required(false)
+        .help("EWMA failurePCT a down target must get under to recover 0.0 - 1.0 (Default: 50% of maxFailurePCT)");
+    Argument arg_hold_down = parser.addArgument("--hold_down")
+        .type(Integer.class)
+        .required(false)
+        .setDefault((int)(HealthConfig.DEFAULT_HOLD_DOWN/1000))
+        .help("Minimum time in seconds a target stays down once it has failed");
+    Argument arg_window_rules = parser.addArgument("--window_rules")
+        .required(false)
+        .help("Extra health rules checked against the 1m, 5m, 1h and 1d windows, a target is tripped if any are over once the window has 10 samples or the rules @{samples} (ie. 5m:failed>0.2,1h:p99>250@50)");
+    Argument arg_max_pipeline_lag = parser.addArgument("--max_pipeline_lag")
+        .type(Integer.class)
+        .required(false)
+        .setDefault((int)PipelineStats.DEFAULT_MAX_LAG)
+        .help("Lag in milliseconds stuncheck can add to a probe before its measurements are flagged untrustworthy");
+    Argument arg_best_count = parser.addArgument("--best_count")
+        .type(Integer.class)
+        .required(false)
+        .setDefault(TargetRanking.DEFAULT_COUNT)
+        .help("Number of targets /best_servers returns by default");
+    Argument arg_score_percentile = parser.addArgument("--score_percentile")
+        .type(Double.class)
+        .required(false)
+        .setDefault(TargetRanking.DEFAULT_PERCENTILE)
+        .help("Latency percentile 1 - 100 used to score targets for /best_servers");
+    Argument arg_score_loss_weight = parser.addArgument("--score_loss_weight")
+        .type(Double.class)
+        .required(false)
+        .setDefault(TargetRanking.DEFAULT_LOSS_WEIGHT)
+        .help("Weight of the failurePCT in a targets /best_servers score, score = latency * (1 + weight * failurePCT)");
+    Argument arg_history_dir = parser.addArgument("--history_dir")
+        .required(false)
+        .help("Directory to keep the per target probe history in, history is disabled if not set");
+    Argument arg_history_retention = parser.addArgument("--history_retention")
+        .type(Integer.class)
+        .required(false)
+        .setDefault(168)
+        .help("Number of hours of probe history to keep");
+    Argument arg_targets_file = parser.addArgument("--targets_file")
+        .required(false)
+        .help("File with one stun server per line to check, the file is watched and changes are applied as they are made");
+    Argument arg_admin_listen = parser.addArgument("--admin_listen_address")
+        .required(false)
+        .help("The IP/port to serve the /admin/targets endpoint on to add and remove stun servers to check (ie. 127.0.0.1:8081), disabled if not set");
+    Argument arg_dns_listen = parser.addArgument("--dns_listen_address")
+        .required(false)
+        .help("The IP/port to answer DNS queries for the stun server hostnames on (ie. 0.0.0.0:53), disabled if not set");
+    Argument arg_dns_ttl = parser.addArgument("--dns_ttl")
+        .type(Integer.class)
+        .required(false)
+        .setDefault(DnsRecords.DEFAULT_TTL)
+        .help("TTL in seconds of the DNS answers");
+    Argument arg_push_address = parser.addArgument("--push_address")
+        .required(false)
+        .help("The host:port of a StatsD/InfluxDB collector to push probe results to, pushing is disabled if not set");
+    Argument arg_push_protocol = parser.addArgument("--push_protocol")
+        .choices("udp", "tcp")
+        .required(false)
+        .setDefault("udp")
+        .help("Protocol to push results over");
+    Argument arg_push_format = parser.addArgument("--push_format")
+        .choices("statsd", "influx")
+        .required(false)
+        .setDefault("statsd")
+        .help("Format to push results in, StatsD or InfluxDB line protocol");
+    Argument arg_push_mode = parser.addArgument("--push_mode")
+        .choices("probe", "interval")
+        .required(false)
+        .setDefault("probe")
+        .help("Push every probe result or a summary per target each push_interval");
+    Argument arg_push_interval = parser.addArgument("--push_interval")
+        .type(Integer.class)
+        .required(false)
+        .setDefault((int)(PushExporter.DEFAULT_INTERVAL/1000))
+        .help("Time in seconds between pushes");
+    Argument arg_push_packet_size = parser.addArgument("--push_packet_size")
+        .type(Integer.class)
+        .required(false)
+        .setDefault(PushExporter.DEFAULT_PACKET_SIZE)
+        .help("Max bytes in each pushed packet, keep this under the path MTU for UDP");
+    Argument arg_cluster_nodes = parser.addArgument("--cluster_nodes")
+        .required(false)
+        .help("The host:port of the HTTP server of every node in the cluster, including this one (ie. 10.0.0.1:8080,10.0.0.2:8080)  Targets are split between the nodes that are up, cluster mode is disabled if not set");
+    Argument arg_cluster_node = parser.addArgument("--cluster_node")
+        .required(false)
+        .help("This node's entry in cluster_nodes (Default: listen_address)");
+    Argument arg_snapshot_file = parser.addArgument("--snapshot_file")
+        .required(false)
+        .help("File to periodically save the stats to and restore them from on startup, disabled if not set");
+    Argument arg_snapshot_max_age = parser.addArgument("--snapshot_max_age")
+        .type(Integer.class)
+        .required(false)
+        .setDefault((int)(StateSnapshot.DEFAULT_MAX_AGE/1000))
+        .help("Max age in seconds of samples to restore from the snapshot");
     if(env_servers != null) {
-      arg_servers.required(false);
       arg_servers.setDefault(env_servers);
     }
+    if(env_targets_file != null) {
+      arg_targets_file.setDefault(env_targets_file);
+    }
+    if(env_admin_listen != null) {
+      arg_admin_listen.setDefault(env_admin_listen);
+    }
 
     if(env_listen != null) {
       arg_listen.required(false);
       arg_listen.setDefault(env_listen);
     }
+    if(env_probe_bind != null) {
+      arg_probe_bind.setDefault(env_probe_bind);
+    }
     if(env_latency != null) {
       arg_latency.setDefault(env_latency);
     }
@@ -327,6 +1328,78 @@ public class StunHTTP {
     if(env_cached != null) {
       arg_cached.setDefault(env_cached);
     }
+    if(env_trip_count != null) {
+      arg_trip_count.setDefault(env_trip_count);
+    }
+    if(env_alpha != null) {
+      arg_alpha.setDefault(env_alpha);
+    }
+    if(env_recover_latency != null) {
+      arg_recover_latency.setDefault(env_recover_latency);
+    }
+    if(env_recover_failpct != null) {
+      arg_recover_failpct.setDefault(env_recover_failpct);
+    }
+    if(env_hold_down != null) {
+      arg_hold_down.setDefault(env_hold_down);
+    }
+    if(env_window_rules != null) {
+      arg_window_rules.setDefault(env_window_rules);
+    }
+    if(env_max_pipeline_lag != null) {
+      arg_max_pipeline_lag.setDefault(env_max_pipeline_lag);
+    }
+    if(env_history_dir != null) {
+      arg_history_dir.setDefault(env_history_dir);
+    }
+    if(env_history_retention != null) {
+      arg_history_retention.setDefault(env_history_retention);
+    }
+    if(env_dns_listen != null) {
+      arg_dns_listen.setDefault(env_dns_listen);
+    }
+    if(env_dns_ttl != null) {
+      arg_dns_ttl.setDefault(env_dns_ttl);
+    }
+    if(env_push_address != null) {
+      arg_push_address.setDefault(env_push_address);
+    }
+    if(env_push_protocol != null) {
+      arg_push_protocol.setDefault(env_push_protocol.toLowerCase());
+    }
+    if(env_push_format != null) {
+      arg_push_format.setDefault(env_push_format.toLowerCase());
+    }
+    if(env_push_mode != null) {
+      arg_push_mode.setDefault(env_push_mode.toLowerCase());
+    }
+    if(env_push_interval != null) {
+      arg_push_interval.setDefault(env_push_interval);
+    }
+    if(env_push_packet_size != null) {
+      arg_push_packet_size.setDefault(env_push_packet_size);
+    }
+    if(env_cluster_nodes != null) {
+      arg_cluster_nodes.setDefault(env_cluster_nodes);
+    }
+    if(env_cluster_node != null) {
+      arg_cluster_node.setDefault(env_cluster_node);
+    }
+    if(env_snapshot_file != null) {
+      arg_snapshot_file.setDefault(env_snapshot_file);
+    }
+    if(env_snapshot_max_age != null) {
+      arg_snapshot_max_age.setDefault(env_snapshot_max_age);
+    }
+    if(env_best_count != null) {
+      arg_best_count.setDefault(env_best_count);
+    }
+    if(env_score_percentile != null) {
+      arg_score_percentile.setDefault(env_score_percentile);
+    }
+    if(env_score_loss_weight != null) {
+      arg_score_loss_weight.setDefault(env_score_loss_weight);
+    }
     Namespace res = null;
     try {
       res = parser.parseArgs(args);
@@ -336,6 +1409,12 @@ public class StunHTTP {
     }
 
     final String servers = res.getString("stun_servers");
+    final String targets_file = res.getString("targets_file");
+    final String admin_listen = res.getString("admin_listen_address");
+    if(servers == null && targets_file == null && admin_listen == null) {
+      parser.handleError(new ArgumentParserException("one of --stun_servers, --targets_file or --admin_listen_address is required", parser));
+      System.exit(1);
+    }
     final String listen = res.getString("listen_address");
     int tmp_delay = res.getInt("delay");
     if(tmp_delay < 1) {
@@ -359,21 +1438,117 @@ public class StunHTTP {
       tmp_cached = 10000;
     }
     final int cached = tmp_cached;
+    final int recover_latency = res.get("recover_latency") != null ? res.getInt("recover_latency") : (int)(latency*.8);
+    final double recover_failures = res.get("recoverFailurePCT") != null ? res.getDouble("recoverFailurePCT") : failures/2;
+    final List<WindowRule> windowRules = new ArrayList<>();
+    if(res.getString("window_rules") != null) {
+      try {
+        for(String rule: res.getString("window_rules").split(",")) {
+          if(!rule.trim().isEmpty()) {
+            windowRules.add(WindowRule.parse(rule));
+          }
+        }
+      } catch(IllegalArgumentException e) {
+        parser.handleError(new ArgumentParserException(e.getMessage(), parser));
+        System.exit(1);
+      }
+    }
+    final HealthConfig healthConfig = new HealthConfig(
+        res.getInt("fail_trip_count"), 
+        res.getDouble("ewma_alpha"), 
+        latency, 
+        recover_latency, 
+        failures, 
+        recover_failures, 
+        res.getInt("hold_down")*1000L,
+        windowRules,
+        res.getInt("max_pipeline_lag"));
+    final TargetRanking ranking = new TargetRanking(
+        res.getDouble("score_percentile"), 
+        res.getDouble("score_loss_weight"), 
+        res.getInt("best_count"));
+    final String history_dir = res.getString("history_dir");
+    ProbeHistory history = null;
+    if(history_dir != null) {
+      history = new ProbeHistory(new File(history_dir), Math.max(1, res.getInt("history_retention"))*3600000L);
+    }
+    final String dns_listen = res.getString("dns_listen_address");
+    InetSocketAddress dns_addr = null;
+    DnsRecords dnsRecords = null;
+    if(dns_listen != null) {
+      dns_addr = new InetSocketAddress(dns_listen.split(":")[0],Integer.parseInt(dns_listen.split(":")[1]));
+      dnsRecords = new DnsRecords(res.getInt("dns_ttl"));
+    }
+    final String push_address = res.getString("push_address");
+    PushExporter exporter = null;
+    if(push_address != null) {
+      InetSocketAddress push_addr = ResolvingTargetSource.parseServer(push_address);
+      exporter = new PushExporter(new InetSocketAddress(push_addr.getHostString(), push_addr.getPort()), 
+          PushExporter.Protocol.valueOf(res.getString("push_protocol").toUpperCase()), 
+          PushExporter.Format.valueOf(res.getString("push_format").toUpperCase()), 
+          PushExporter.Mode.valueOf(res.getString("push_mode").toUpperCase()), 
+          Math.max(1, res.getInt("push_interval"))*1000L, 
+          res.getInt("push_packet_size"));
+    }
+    Cluster cluster = null;
+    if(res.getString("cluster_nodes") != null) {
+      final String cluster_node = res.getString("cluster_node") != null ? res.getString("cluster_node").trim() : listen;
+      final List<String> cluster_nodes = new ArrayList<>();
+      for(String node: res.getString("cluster_nodes").split(",")) {
+        if(!node.trim().isEmpty()) {
+          cluster_nodes.add(node.trim());
+        }
+      }
+      if(!cluster_nodes.contains(cluster_node)) {
+        parser.handleError(new ArgumentParserException("cluster_node "+cluster_node+
+            " is not in cluster_nodes, set --cluster_node to this node's entry", parser));
+        System.exit(1);
+      }
+      cluster = new Cluster(cluster_node, cluster_nodes, StunClock.SYSTEM, new SingleThreadScheduler(), 
+          Cluster.DEFAULT_POLL_INTERVAL);
+    }
+    final String snapshot_file = res.getString("snapshot_file");
+    StateSnapshot snapshot = null;
+    if(snapshot_file != null) {
+      snapshot = new StateSnapshot(new File(snapshot_file), Math.max(1, res.getInt("snapshot_max_age"))*1000L);
+    }
 
-    log.info("Starting Service with the following arguments:\nservers:{}\nlisten:{}\ndelay:{}\nlatency:{}\nfailures:{}\ncached:{}", servers, listen, delay, latency, failures, cached);
+    log.info("Starting Service with the following arguments:\nservers:{}\nlisten:{}\ndelay:{}\nlatency:{}\nfailures:{}\ncached:{}\nhealth:{}", servers, listen, delay, latency, failures, cached, healthConfig);
 
     final InetSocketAddress listen_addr = new InetSocketAddress(listen.split(":")[0],Integer.parseInt(listen.split(":")[1]));
-    final List<InetSocketAddress> ra = new ArrayList<>();
-    for(String server: servers.split(",")) {
-      if(server.contains(":")) {
-        String[] tmp = server.split(":");
-        ra.add(new InetSocketAddress(tmp[0], Integer.valueOf(tmp[1])));
-      } else {
-        ra.add(new InetSocketAddress(server, 3478));
+    final List<InetAddress> probe_bind = new ArrayList<>();
+    if(res.getString("probe_bind_addresses") != null) {
+      for(String ip: res.getString("probe_bind_addresses").split(",")) {
+        InetAddress ia = InetAddress.getByName(ip.trim().replace("[", "").replace("]", ""));
+        boolean sameFamily = false;
+        for(InetAddress other: probe_bind) {
+          sameFamily |= (other instanceof Inet6Address) == (ia instanceof Inet6Address);
+        }
+        if(sameFamily) {
+          log.warn("Ignoring extra probe bind address in the same family:{}", ia);
+        } else {
+          probe_bind.add(ia);
+        }
+      }
+    }
+    final SingleThreadScheduler sourceScheduler = new SingleThreadScheduler();
+    final List<TargetSource> sources = new ArrayList<>();
+    if(servers != null) {
+      final List<InetSocketAddress> ra = new ArrayList<>();
+      for(String server: servers.split(",")) {
+        ra.add(ResolvingTargetSource.parseServer(server.trim()));
       }
+      sources.add(new StaticTargetSource(ra, sourceScheduler));
+    }
+    if(targets_file != null) {
+      sources.add(new FileTargetSource(new File(targets_file), sourceScheduler));
+    }
+    if(admin_listen != null) {
+      InetSocketAddress admin_addr = new InetSocketAddress(admin_listen.split(":")[0],Integer.parseInt(admin_listen.split(":")[1]));
+      sources.add(new AdminTargetSource(sourceScheduler, admin_addr));
     }
 
-    StunHTTP H = new StunHTTP(listen_addr, ra, delay*1000, cached, latency, failures);
+    StunHTTP H = new StunHTTP(listen_addr, probe_bind, sources, delay*1000, cached, healthConfig, ranking, history, snapshot, dns_addr, dnsRecords, exporter, cluster);
     while(true) {
       Thread.sleep(10000000);
     }
@@ -1,5 +1,7 @@
 package com.ecovate.rtc.stun;
 
+import java.util.Map;
+
 class StunStats {
 
   
@@ -12,8 +14,18 @@ class StunStats {
   private final String total_completed;
   
   private final long total_requests;
+
+  private final String health;
+  private final String ewma_latency;
+  private final String ewma_failed;
+  private final int consecutive_failures;
+
+  private final boolean measurement_untrustworthy;
+
+  private final Map<String, ProbeWindows.WindowStats> windows;
   
-  public StunStats(double cl, double cf,double cc, double tl, double tf, double tc, long tr) {
+  public StunStats(double cl, double cf,double cc, double tl, double tf, double tc, long tr, HealthTracker ht, 
+      Map<String, ProbeWindows.WindowStats> windows, boolean untrustworthy) {
     
     this.current_latency = String.format("%.4f",cl);
     this.current_failed = String.format("%.4f",cf);
@@ -22,6 +34,12 @@ class StunStats {
     this.total_failed = String.format("%.4f",tf);
     this.total_completed = String.format("%.4f",tc);;
     this.total_requests = tr;
+    this.health = ht.getState().name();
+    this.ewma_latency = String.format("%.4f",ht.getEwmaLatency());
+    this.ewma_failed = String.format("%.4f",ht.getEwmaLoss());
+    this.consecutive_failures = ht.getConsecutiveFailures();
+    this.windows = windows;
+    this.measurement_untrustworthy = untrustworthy;
   }
 
   public String getCurrent_latency() {
@@ -51,4 +69,28 @@ class StunStats {
   public long getTotal_requests() {
     return total_requests;
   }
-}
\ No newline at end of file
+
+  public String getHealth() {
+    return health;
+  }
+
+  public String getEwma_latency() {
+    return ewma_latency;
+  }
+
+  public String getEwma_failed() {
+    return ewma_failed;
+  }
+
+  public int getConsecutive_failures() {
+    return consecutive_failures;
+  }
+
+  public boolean isMeasurement_untrustworthy() {
+    return measurement_untrustworthy;
+  }
+
+  public Map<String, ProbeWindows.WindowStats> getWindows() {
+    return windows;
+  }
+}
@@ -0,0 +1,21 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Holds the per target state {@link StunHTTP} keeps around a {@link SimpleStunClient}.
+ */
+class StunTarget {
+  final InetSocketAddress address;
+  final String key;
+  final SimpleStunClient client;
+  final HealthTracker health;
+  final ProbeWindows windows = new ProbeWindows();
+
+  StunTarget(InetSocketAddress address, SimpleStunClient client, HealthConfig healthConfig) {
+    this.address = address;
+    this.key = StunHTTP.targetKey(address);
+    this.client = client;
+    this.health = new HealthTracker(healthConfig, address.getAddress().getHostAddress());
+  }
+}
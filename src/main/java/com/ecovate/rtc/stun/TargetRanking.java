@@ -0,0 +1,152 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keeps the healthy targets sorted by score so the best N can be handed to clients picking a
+ * stun server.  The score is the latency at the configured percentile weighted by the current
+ * failure percentage: {@code latency * (1 + lossWeight * failedPCT)}, lower is better.  Targets
+ * with no completed requests in the current window have no latency to score and are left out, 
+ * otherwise a target with only timeouts would score 0 and be ranked first.
+ *
+ * Targets are updated one at a time as their stats are recomputed so the ordering is never
+ * rebuilt from scratch.
+ */
+public class TargetRanking {
+  public static final double DEFAULT_PERCENTILE = 90;
+  public static final double DEFAULT_LOSS_WEIGHT = 10;
+  public static final int DEFAULT_COUNT = 3;
+
+  private final ConcurrentSkipListSet<RankedTarget> ranked = new ConcurrentSkipListSet<>();
+  private final ConcurrentHashMap<InetSocketAddress, RankedTarget> entries = new ConcurrentHashMap<>();
+  private final double percentile;
+  private final double lossWeight;
+  private final int defaultCount;
+
+  /**
+   * @param percentile the latency percentile (0-100) to score targets on.
+   * @param lossWeight how much the failure percentage is weighted against latency.
+   * @param defaultCount the number of targets returned when none is asked for.
+   */
+  public TargetRanking(double percentile, double lossWeight, int defaultCount) {
+    this.percentile = Math.min(100, Math.max(1, percentile));
+    this.lossWeight = Math.max(0, lossWeight);
+    this.defaultCount = Math.max(1, defaultCount);
+  }
+
+  public TargetRanking() {
+    this(DEFAULT_PERCENTILE, DEFAULT_LOSS_WEIGHT, DEFAULT_COUNT);
+  }
+
+  public int getDefaultCount() {
+    return defaultCount;
+  }
+
+  /**
+   * Rescores the target, targets that are down or have no completed requests are dropped from
+   * the ranking.
+   *
+   * @return true if the ranking or the targets score changed.
+   */
+  boolean update(StunTarget st) {
+    RankedTarget rt = null;
+    if(st.health.isUp() && st.client.totalRequests() > 0 && st.client.currentCompletedPCT() > 0) {
+      double latency = st.client.currentLatencyPercentile(percentile);
+      double failed = st.client.currentFailedPCT();
+      rt = new RankedTarget(StunHTTP.targetKey(st.address), latency, failed, latency*(1+(lossWeight*failed)));
+    }
+    return replace(st.address, rt);
+  }
+
+  /**
+   * @return true if the ranking was changed.
+   */
+  boolean remove(InetSocketAddress isa) {
+    return replace(isa, null);
+  }
+
+  private boolean replace(InetSocketAddress isa, RankedTarget rt) {
+    if(rt != null && rt.equals(entries.get(isa))) {
+      return false;
+    }
+    RankedTarget old = rt == null ? entries.remove(isa) : entries.put(isa, rt);
+    if(old != null) {
+      ranked.remove(old);
+    }
+    if(rt != null) {
+      ranked.add(rt);
+    }
+    return old != null || rt != null;
+  }
+
+  /**
+   * @return up to count of the best scoring targets, best first.
+   */
+  public List<RankedTarget> top(int count) {
+    ArrayList<RankedTarget> list = new ArrayList<>(Math.min(count, entries.size()));
+    for(RankedTarget rt: ranked) {
+      if(list.size() >= count) {
+        break;
+      }
+      list.add(rt);
+    }
+    return list;
+  }
+
+  public static class RankedTarget implements Comparable<RankedTarget> {
+    private final String target;
+    private final double latency;
+    private final double failed;
+    private final double score;
+
+    RankedTarget(String target, double latency, double failed, double score) {
+      this.target = target;
+      this.latency = latency;
+      this.failed = failed;
+      this.score = score;
+    }
+
+    public String getTarget() {
+      return target;
+    }
+
+    public double getLatency() {
+      return latency;
+    }
+
+    public double getFailed() {
+      return failed;
+    }
+
+    public double getScore() {
+      return score;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof RankedTarget)) {
+        return false;
+      }
+      RankedTarget rt = (RankedTarget)o;
+      return target.equals(rt.target) && latency == rt.latency && failed == rt.failed && score == rt.score;
+    }
+
+    @Override
+    public int hashCode() {
+      return target.hashCode();
+    }
+
+    @Override
+    public int compareTo(RankedTarget o) {
+      int c = Double.compare(score, o.score);
+      if(c == 0) {
+        return target.compareTo(o.target);
+      }
+      return c;
+    }
+  }
+}
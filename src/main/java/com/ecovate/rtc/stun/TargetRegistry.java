@@ -0,0 +1,160 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetSocketAddress;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the add/remove events from every {@link TargetSource} and keeps track of which
+ * targets should be probed and which hostnames they belong to.  A target is only added once the
+ * first source reports it and only removed once no source is reporting it anymore, so each event
+ * touches just the one target it is about.  The same goes for a host resolving to a target, it is
+ * counted per (host, target) so one source dropping it does not hide it for the others.  Events are passed on to the {@link Listener} in the
+ * order they are applied.
+ */
+public class TargetRegistry implements TargetSource.Listener {
+  private final HashMap<InetSocketAddress, Integer> refCounts = new HashMap<>();
+  private final HashMap<Map.Entry<String, InetSocketAddress>, Integer> hostRefCounts = new HashMap<>();
+  private final ConcurrentHashMap<String, Set<InetSocketAddress>> hostTargets = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<InetSocketAddress, Set<String>> targetHosts = new ConcurrentHashMap<>();
+  private final Listener listener;
+
+  public TargetRegistry(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void targetAdded(TargetSource source, String host, InetSocketAddress address) {
+    synchronized(refCounts) {
+      Integer count = refCounts.get(address);
+      boolean added = count == null;
+      refCounts.put(address, added ? 1 : count+1);
+      boolean hostAdded = false;
+      if(host != null) {
+        Map.Entry<String, InetSocketAddress> key = new SimpleImmutableEntry<>(host, address);
+        Integer hostCount = hostRefCounts.get(key);
+        hostAdded = hostCount == null;
+        hostRefCounts.put(key, hostAdded ? 1 : hostCount+1);
+        if(hostAdded) {
+          hostTargets.computeIfAbsent(host, (k)->ConcurrentHashMap.newKeySet()).add(address);
+          targetHosts.computeIfAbsent(address, (k)->ConcurrentHashMap.newKeySet()).add(host);
+        }
+      }
+      if(added) {
+        listener.targetAdded(address);
+      }
+      if(hostAdded) {
+        listener.hostChanged(host);
+      }
+    }
+  }
+
+  @Override
+  public void targetRemoved(TargetSource source, String host, InetSocketAddress address) {
+    synchronized(refCounts) {
+      Integer count = refCounts.get(address);
+      if(count == null) {
+        return;
+      }
+      boolean removed = count <= 1;
+      if(removed) {
+        refCounts.remove(address);
+      } else {
+        refCounts.put(address, count-1);
+      }
+      boolean hostRemoved = false;
+      if(host != null) {
+        Map.Entry<String, InetSocketAddress> key = new SimpleImmutableEntry<>(host, address);
+        Integer hostCount = hostRefCounts.get(key);
+        if(hostCount != null && hostCount > 1) {
+          hostRefCounts.put(key, hostCount-1);
+        } else if(hostCount != null) {
+          hostRefCounts.remove(key);
+          hostRemoved = true;
+        }
+      }
+      if(hostRemoved) {
+        Set<InetSocketAddress> targets = hostTargets.get(host);
+        if(targets != null) {
+          targets.remove(address);
+          if(targets.isEmpty()) {
+            hostTargets.remove(host);
+          }
+        }
+        Set<String> hosts = targetHosts.get(address);
+        if(hosts != null) {
+          hosts.remove(host);
+          if(hosts.isEmpty()) {
+            targetHosts.remove(address);
+          }
+        }
+      }
+      if(removed) {
+        listener.targetRemoved(address);
+      }
+      if(hostRemoved) {
+        listener.hostChanged(host);
+      }
+    }
+  }
+
+  public boolean contains(InetSocketAddress address) {
+    synchronized(refCounts) {
+      return refCounts.containsKey(address);
+    }
+  }
+
+  /**
+   * @return a copy of every target currently reported by a source.
+   */
+  public Set<InetSocketAddress> getTargets() {
+    synchronized(refCounts) {
+      return new HashSet<>(refCounts.keySet());
+    }
+  }
+
+  /**
+   * @return a live view of every host key that currently resolves to at least one target.
+   */
+  public Set<String> getHosts() {
+    return Collections.unmodifiableSet(hostTargets.keySet());
+  }
+
+  /**
+   * @return the targets the host key currently resolves to, empty if the host is unknown.
+   */
+  public Set<InetSocketAddress> getHostTargets(String host) {
+    Set<InetSocketAddress> targets = hostTargets.get(host);
+    if(targets == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(targets);
+  }
+
+  /**
+   * @return the host keys that resolve to the target, empty if none do.
+   */
+  public Set<String> getTargetHosts(InetSocketAddress address) {
+    Set<String> hosts = targetHosts.get(address);
+    if(hosts == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(hosts);
+  }
+
+  /**
+   * Gets told when the set of targets to probe, or the targets a host resolves to, changes.
+   */
+  public interface Listener {
+    public void targetAdded(InetSocketAddress address);
+
+    public void targetRemoved(InetSocketAddress address);
+
+    public void hostChanged(String host);
+  }
+}
@@ -0,0 +1,37 @@
+package com.ecovate.rtc.stun;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A source of stun targets to probe.  Sources only report the targets that have changed, as
+ * add and remove events, so the {@link TargetRegistry} never has to diff the full target list.
+ */
+public interface TargetSource {
+
+  /**
+   * Starts the source, any targets the source already knows about should be added to the 
+   * listener before this returns.
+   */
+  public void start(Listener listener);
+
+  public void stop();
+
+  /**
+   * Gets add/remove events from a {@link TargetSource}.
+   */
+  public interface Listener {
+    /**
+     * @param source the source the target came from.
+     * @param host the host key (hostname:port) the target was resolved from, or null if it was configured as an IP.
+     * @param address the resolved target address.
+     */
+    public void targetAdded(TargetSource source, String host, InetSocketAddress address);
+
+    /**
+     * @param source the source the target came from.
+     * @param host the host key (hostname:port) the target was resolved from, or null if it was configured as an IP.
+     * @param address the resolved target address.
+     */
+    public void targetRemoved(TargetSource source, String host, InetSocketAddress address);
+  }
+}
@@ -0,0 +1,115 @@
+package com.ecovate.rtc.stun;
+
+/**
+ * A health rule checked against one of the {@link ProbeWindows}, written as
+ * "{window}:{metric}>{value}[@{min samples}]" (ie. "5m:failed>0.2" or "1h:p99>250@50").
+ *
+ * The metric is one of latency (average millis), p50, p90, p99 (millis) or failed (0.0-1.0).
+ * A rule only trips once the window has at least min samples (requests for failed, completed
+ * requests for the latencies, default {@value #DEFAULT_MIN_SAMPLES}) so a single timeout or slow
+ * probe in a nearly empty window can not mark a target down.
+ * A target that tripped on a rule only recovers once the metric is back under 80% of the value
+ * for latencies, or 50% for failed, matching the EWMA recover defaults.
+ */
+public class WindowRule {
+  public enum Metric { LATENCY, P50, P90, P99, FAILED }
+  public static final int DEFAULT_MIN_SAMPLES = 10;
+
+  private final String window;
+  private final Metric metric;
+  private final double threshold;
+  private final int minSamples;
+
+  public WindowRule(String window, Metric metric, double threshold, int minSamples) {
+    if(!ProbeWindows.isWindow(window)) {
+      throw new IllegalArgumentException("Unknown window:"+window);
+    }
+    this.window = window;
+    this.metric = metric;
+    this.threshold = threshold;
+    this.minSamples = Math.max(1, minSamples);
+  }
+
+  public WindowRule(String window, Metric metric, double threshold) {
+    this(window, metric, threshold, DEFAULT_MIN_SAMPLES);
+  }
+
+  /**
+   * Parses a rule in the "{window}:{metric}>{value}[@{min samples}]" form.
+   */
+  public static WindowRule parse(String rule) {
+    String r = rule.trim();
+    int colon = r.indexOf(':');
+    int gt = r.indexOf('>');
+    int at = r.indexOf('@');
+    if(colon < 1 || gt < colon || (at >= 0 && at < gt)) {
+      throw new IllegalArgumentException("Bad window rule:"+rule);
+    }
+    try {
+      return new WindowRule(r.substring(0, colon).trim(),
+          Metric.valueOf(r.substring(colon+1, gt).trim().toUpperCase()),
+          Double.parseDouble(r.substring(gt+1, at < 0 ? r.length() : at).trim()),
+          at < 0 ? DEFAULT_MIN_SAMPLES : Integer.parseInt(r.substring(at+1).trim()));
+    } catch(NumberFormatException e) {
+      throw new IllegalArgumentException("Bad window rule:"+rule, e);
+    }
+  }
+
+  public String getWindow() {
+    return window;
+  }
+
+  public Metric getMetric() {
+    return metric;
+  }
+
+  public double getThreshold() {
+    return threshold;
+  }
+
+  public int getMinSamples() {
+    return minSamples;
+  }
+
+  /**
+   * @return the metric from the stats, or -1 if the window has nothing to measure it on.
+   */
+  double value(ProbeWindows.WindowStats ws) {
+    if(metric == Metric.FAILED) {
+      return ws.getRequests() == 0 ? -1 : ws.getFailed();
+    }
+    if(ws.getCompleted() == 0) {
+      return -1;
+    }
+    switch(metric) {
+      case P50:
+        return ws.getP50();
+      case P90:
+        return ws.getP90();
+      case P99:
+        return ws.getP99();
+      default:
+        return ws.getLatency();
+    }
+  }
+
+  /**
+   * @return true if the stats have enough samples and are over the rules threshold.
+   */
+  boolean trips(ProbeWindows.WindowStats ws) {
+    long samples = metric == Metric.FAILED ? ws.getRequests() : ws.getCompleted();
+    return samples >= minSamples && value(ws) > threshold;
+  }
+
+  /**
+   * @return true if the stats are back under the rules recover threshold.
+   */
+  boolean recovered(ProbeWindows.WindowStats ws) {
+    return value(ws) <= threshold*(metric == Metric.FAILED ? .5 : .8);
+  }
+
+  @Override
+  public String toString() {
+    return window+":"+metric.name().toLowerCase()+">"+threshold+"@"+minSamples;
+  }
+}
@@ -0,0 +1,57 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class CapacityBenchmarkTests {
+
+  @Test
+  public void respondersEcho() throws IOException {
+    CapacityBenchmark.Responders responders = new CapacityBenchmark.Responders(3);
+    try(DatagramChannel dc = DatagramChannel.open(); Selector selector = Selector.open()) {
+      responders.start();
+      assertEquals(3, responders.getAddresses().size());
+      // receive() ignores SO_TIMEOUT, so wait on a selector to not hang on a lost echo.
+      dc.configureBlocking(false);
+      dc.register(selector, SelectionKey.OP_READ);
+      for(InetSocketAddress isa: responders.getAddresses()) {
+        byte[] request = ("request-"+isa.getPort()).getBytes(StandardCharsets.UTF_8);
+        dc.send(ByteBuffer.wrap(request), isa);
+        ByteBuffer bb = ByteBuffer.allocate(1500);
+        assertTrue("no echo from "+isa, selector.select(5000) > 0);
+        selector.selectedKeys().clear();
+        assertEquals(isa, dc.receive(bb));
+        bb.flip();
+        byte[] response = new byte[bb.remaining()];
+        bb.get(response);
+        assertArrayEquals(request, response);
+      }
+      assertEquals(3, responders.getResponses());
+    } finally {
+      responders.close();
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    long[] sorted = new long[100];
+    for(int i=0; i<sorted.length; i++) {
+      sorted[i] = i+1;
+    }
+    assertEquals(50, CapacityBenchmark.SizeResult.percentile(sorted, 50));
+    assertEquals(99, CapacityBenchmark.SizeResult.percentile(sorted, 99));
+    assertEquals(100, CapacityBenchmark.SizeResult.percentile(sorted, 100));
+    assertEquals(7, CapacityBenchmark.SizeResult.percentile(new long[] {7}, 99));
+  }
+}
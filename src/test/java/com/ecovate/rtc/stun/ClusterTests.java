@@ -0,0 +1,111 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ClusterTests {
+  private static final List<String> NODES = Arrays.asList("127.0.0.1:8081", "127.0.0.1:8082", "127.0.0.1:8083");
+
+  @Test
+  public void ringOnlyMovesLeavingNodesKeys() {
+    HashRing three = new HashRing(NODES, Cluster.DEFAULT_VIRTUAL_NODES);
+    HashRing two = new HashRing(NODES.subList(0, 2), Cluster.DEFAULT_VIRTUAL_NODES);
+    Map<String, Integer> counts = new HashMap<>();
+    for(int i=0; i<3000; i++) {
+      String key = "10.0."+(i/256)+"."+(i%256)+":3478";
+      String owner = three.owner(key);
+      counts.merge(owner, 1, Integer::sum);
+      if(!owner.equals(NODES.get(2))) {
+        assertEquals(owner, two.owner(key));
+      }
+    }
+    for(String node: NODES) {
+      assertTrue(counts.get(node) > 600 && counts.get(node) < 1400);
+    }
+  }
+
+  @Test
+  public void membershipAndAggregate() {
+    SimulatedClock clock = new SimulatedClock(0);
+    Set<String> down = new HashSet<>();
+    Map<String, String> summaries = new HashMap<>();
+    summaries.put(NODES.get(1), "{\"node\":\"127.0.0.1:8082\",\"targets\":{\"10.0.0.2:3478\":{\"health\":\"UP\"}}}");
+    summaries.put(NODES.get(2), "{\"node\":\"127.0.0.1:8083\",\"targets\":{\"10.0.0.3:3478\":{\"health\":\"DOWN\"}}}");
+    AtomicInteger changes = new AtomicInteger();
+    Cluster cluster = new Cluster(NODES.get(0), NODES, clock, clock.getScheduler(), 1000, (node)->{
+      if(down.contains(node)) {
+        throw new IOException("down");
+      }
+      return summaries.get(node);
+    });
+    cluster.setListener((live)->changes.incrementAndGet());
+    // until the peers answer this node owns every target.
+    assertTrue(cluster.owns("10.0.0.9:3478"));
+    cluster.start();
+    clock.advance(10);
+    assertEquals(3, cluster.getLiveNodes().size());
+    assertEquals(1, changes.get());
+
+    JsonObject local = new JsonParser().parse("{\"10.0.0.1:3478\":{\"health\":\"UP\"}}").getAsJsonObject();
+    Map<String, JsonObject> merged = cluster.aggregate(local);
+    assertEquals(3, merged.size());
+    assertEquals(NODES.get(1), merged.get("10.0.0.2:3478").get("node").getAsString());
+    assertEquals("DOWN", merged.get("10.0.0.3:3478").get("health").getAsString());
+
+    down.add(NODES.get(2));
+    clock.advance(1000);
+    assertEquals(3, cluster.getLiveNodes().size());
+    clock.advance(3000);
+    assertFalse(cluster.getLiveNodes().contains(NODES.get(2)));
+    assertEquals(2, changes.get());
+    assertEquals(2, cluster.aggregate(local).size());
+    cluster.stop();
+  }
+
+  @Test
+  public void hungPeersDoNotAgeOutLivePeers() {
+    AtomicLong now = new AtomicLong();
+    StunClock clock = new StunClock() {
+      @Override
+      public long millis() {
+        return now.get();
+      }
+
+      @Override
+      public long epochMillis() {
+        return now.get();
+      }
+    };
+    List<String> nodes = Arrays.asList("127.0.0.1:8081", "127.0.0.1:8082", "127.0.0.1:8083", 
+        "127.0.0.1:8084", "127.0.0.1:8085", "127.0.0.1:8086");
+    Cluster cluster = new Cluster(nodes.get(0), nodes, clock, new SimulatedClock(0).getScheduler(), 1000, (node)->{
+      if(!node.equals(nodes.get(1))) {
+        // each hung peer takes the full connect+read timeout
+        now.addAndGet(3000);
+        throw new IOException("timeout");
+      }
+      return "{\"targets\":{}}";
+    });
+    for(int i=0; i<5; i++) {
+      cluster.poll();
+      now.addAndGet(1000);
+      assertEquals(new HashSet<>(nodes.subList(0, 2)), cluster.getLiveNodes());
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DnsRecordsTests {
+
+  private static ByteBuffer query(int id, String name, int type) {
+    byte[] wireName = DnsRecords.encodeName(name);
+    ByteBuffer bb = ByteBuffer.allocate(DnsRecords.HEADER_SIZE+wireName.length+4);
+    bb.putShort((short)id);
+    bb.putShort((short)0x0100);
+    bb.putShort((short)1);
+    bb.putShort((short)0);
+    bb.putShort((short)0);
+    bb.putShort((short)0);
+    bb.put(wireName);
+    bb.putShort((short)type);
+    bb.putShort((short)DnsRecords.CLASS_IN);
+    bb.flip();
+    return bb;
+  }
+
+  @Test
+  public void answerA() throws Exception {
+    DnsRecords dr = new DnsRecords(5);
+    InetAddress a = InetAddress.getByName("10.0.0.2");
+    InetAddress b = InetAddress.getByName("10.0.0.1");
+    InetAddress c = InetAddress.getByName("2001:db8::1");
+    assertTrue(dr.setRecords("stun.test.com", Arrays.asList(a, b, c)));
+    assertFalse(dr.setRecords("stun.test.com", Arrays.asList(a, b, c)));
+
+    ByteBuffer q = query(1234, "stun.test.com", DnsRecords.TYPE_A);
+    q.put(DnsRecords.HEADER_SIZE+1, (byte)'S');
+    ByteBuffer response = dr.answer(q);
+    assertEquals(1234, response.getShort(0));
+    assertEquals(0x8500, response.getShort(2) & 0xffff);
+    assertEquals(2, response.getShort(6));
+    // The case of the question is kept.
+    assertEquals('S', response.get(DnsRecords.HEADER_SIZE+1));
+    int answers = DnsRecords.HEADER_SIZE+DnsRecords.encodeName("stun.test.com").length+4;
+    assertEquals(5, response.getInt(answers+6));
+    byte[] ip = new byte[4];
+    response.position(answers+12);
+    response.get(ip);
+    assertEquals(a, InetAddress.getByAddress(ip));
+
+    response = dr.answer(query(1, "stun.test.com", DnsRecords.TYPE_AAAA));
+    assertEquals(1, response.getShort(6));
+    assertEquals(answers+12+16, response.remaining());
+
+    assertTrue(dr.setRecords("stun.test.com", Arrays.asList(b)));
+    response = dr.answer(query(1, "stun.test.com", DnsRecords.TYPE_A));
+    assertEquals(1, response.getShort(6));
+    assertEquals(0, dr.answer(query(1, "stun.test.com", DnsRecords.TYPE_AAAA)).getShort(6));
+  }
+
+  @Test
+  public void refuseUnknown() throws Exception {
+    DnsRecords dr = new DnsRecords(5);
+    dr.setRecords("stun.test.com", Arrays.asList(InetAddress.getByName("10.0.0.1")));
+    ByteBuffer response = dr.answer(query(99, "other.test.com", DnsRecords.TYPE_A));
+    assertEquals(99, response.getShort(0));
+    assertEquals(DnsRecords.RCODE_REFUSED, response.getShort(2) & 0xf);
+    assertEquals(0, response.getShort(6));
+
+    assertTrue(dr.remove("stun.test.com"));
+    assertNull(dr.getRecords("stun.test.com"));
+    response = dr.answer(query(99, "stun.test.com", DnsRecords.TYPE_A));
+    assertEquals(DnsRecords.RCODE_REFUSED, response.getShort(2) & 0xf);
+
+    ByteBuffer truncated = query(1, "stun.test.com", DnsRecords.TYPE_A);
+    truncated.limit(truncated.limit()-3);
+    assertNull(dr.answer(truncated));
+  }
+}
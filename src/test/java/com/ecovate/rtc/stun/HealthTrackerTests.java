@@ -0,0 +1,123 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HealthTrackerTests {
+
+  @Test
+  public void consecutiveFailuresTrip() {
+    HealthTracker ht = new HealthTracker(new HealthConfig(3, .1, 100, 80, .9, .5, 0), "consecutiveFailuresTrip");
+    long time = 0;
+    for(int i=0; i<10; i++) {
+      assertFalse(ht.onProbe(time, 10, time+10));
+      time += 1000;
+    }
+    assertFalse(ht.onProbe(time, -1, time+1000));
+    assertFalse(ht.onProbe(time+1000, -1, time+2000));
+    assertTrue(ht.onProbe(time+2000, -1, time+3000));
+    assertEquals(HealthTracker.State.DOWN, ht.getState());
+    assertEquals(3000, ht.getLastDetectTime());
+  }
+
+  @Test
+  public void ewmaLatencyTrip() {
+    HealthTracker ht = new HealthTracker(new HealthConfig(3, .5, 100, 80, .9, .5, 0), "ewmaLatencyTrip");
+    assertFalse(ht.onProbe(0, 50, 50));
+    assertFalse(ht.onProbe(1000, 140, 1140));
+    assertEquals(95, ht.getEwmaLatency(), 0.0001);
+    assertTrue(ht.onProbe(2000, 140, 2140));
+    assertFalse(ht.isUp());
+    assertEquals(1140, ht.getLastDetectTime());
+  }
+
+  @Test
+  public void holdDownAndHysteresis() {
+    HealthTracker ht = new HealthTracker(new HealthConfig(1, .5, 100, 30, .9, .5, 10000), "holdDownAndHysteresis");
+    assertTrue(ht.onProbe(0, -1, 1000));
+    assertFalse(ht.isUp());
+    // good probes inside the hold down time do not recover the target.
+    assertFalse(ht.onProbe(1000, 10, 1010));
+    assertFalse(ht.onProbe(2000, 10, 2010));
+    assertFalse(ht.onProbe(3000, 10, 3010));
+    assertFalse(ht.isUp());
+    // past hold down but latency between the recover and trip thresholds does not recover.
+    assertFalse(ht.onProbe(11000, 90, 11090));
+    assertFalse(ht.onProbe(12000, 90, 12090));
+    assertFalse(ht.isUp());
+    assertFalse(ht.onProbe(13000, 10, 13010));
+    assertTrue(ht.onProbe(14000, 10, 14010));
+    assertTrue(ht.isUp());
+    assertEquals(1010, ht.getLastRecoverTime());
+  }
+
+  @Test
+  public void windowRuleTrip() {
+    HealthConfig config = new HealthConfig(10, .01, 1000, 800, .9, .5, 0, 
+        Arrays.asList(WindowRule.parse("5m:failed>0.2")));
+    HealthTracker ht = new HealthTracker(config, "windowRuleTrip");
+    ProbeWindows pw = new ProbeWindows();
+    long time = 1500000000000L;
+    boolean tripped = false;
+    // every 3rd probe times out, the EWMA loss stays under .9 but the window goes over .2
+    for(int i=0; i<30 && !tripped; i++) {
+      long rtt = i%3 == 2 ? -1 : 10;
+      pw.record(time, rtt);
+      tripped = ht.onProbe(time, rtt, time, pw);
+      time += 5000;
+    }
+    assertTrue(tripped);
+    assertFalse(ht.isUp());
+    assertEquals(.9, config.getTripLoss(), 0);
+  }
+
+  @Test
+  public void windowRuleNeedsSamples() {
+    WindowRule rule = WindowRule.parse("5m:failed>0.2");
+    assertEquals(WindowRule.DEFAULT_MIN_SAMPLES, rule.getMinSamples());
+    HealthConfig config = new HealthConfig(10, .01, 1000, 800, .9, .5, 0, Arrays.asList(rule));
+    HealthTracker ht = new HealthTracker(config, "windowRuleNeedsSamples");
+    ProbeWindows pw = new ProbeWindows();
+    long time = 1500000000000L;
+    // a single timeout in an empty window is 100% failed but not enough to go on.
+    pw.record(time, -1);
+    assertFalse(ht.onProbe(time, -1, time, pw));
+    assertTrue(ht.isUp());
+    assertFalse(rule.trips(pw.current("5m")));
+    assertTrue(WindowRule.parse("5m:failed>0.2@1").trips(pw.current("5m")));
+    assertEquals(1, WindowRule.parse("5m:failed>0.2@1").getMinSamples());
+  }
+
+  @Test
+  public void isolatedTimeoutDoesNotTrip() {
+    HealthTracker ht = new HealthTracker(new HealthConfig(3, .3, 100, 80, .1, .05, 30000), "isolatedTimeoutDoesNotTrip");
+    long time = 0;
+    for(int i=0; i<200; i++) {
+      // one timeout every 20 probes, 5% loss under the 10% trip loss.
+      long rtt = i%20 == 10 ? -1 : 20;
+      assertFalse(ht.onProbe(time, rtt, time+20));
+      time += 5000;
+    }
+    assertTrue(ht.isUp());
+  }
+
+  @Test
+  public void sustainedLossTrips() {
+    HealthTracker ht = new HealthTracker(new HealthConfig(3, .3, 100, 80, .1, .05, 30000), "sustainedLossTrips");
+    long time = 0;
+    boolean tripped = false;
+    // every 4th probe times out, never enough in a row for fail_trip_count.
+    for(int i=0; i<40 && !tripped; i++) {
+      long rtt = i%4 == 3 ? -1 : 20;
+      tripped = ht.onProbe(time, rtt, time+20);
+      time += 5000;
+    }
+    assertTrue(tripped);
+    assertTrue(ht.getConsecutiveFailures() < 3);
+  }
+}
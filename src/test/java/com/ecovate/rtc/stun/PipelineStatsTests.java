@@ -0,0 +1,49 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PipelineStatsTests {
+
+  @Test
+  public void lagAgesOut() {
+    long now = 1000000;
+    PipelineStats.update(now, 50);
+    PipelineStats.observeMillis(PipelineStats.Stage.WRITE, 10000);
+    assertTrue(PipelineStats.recentMax(PipelineStats.Stage.WRITE) >= 10000*1000000L);
+    assertTrue(PipelineStats.update(now+1000, 50));
+    // still counted for one more rotation.
+    assertTrue(PipelineStats.update(now+6000, 50));
+    PipelineStats.update(now+12000, 50);
+    assertTrue(PipelineStats.recentMax(PipelineStats.Stage.WRITE) < 10000*1000000L);
+  }
+
+  @Test
+  public void underMaxLagIsTrusted() {
+    long now = 2000000;
+    PipelineStats.update(now, 50);
+    PipelineStats.update(now+5000, 50);
+    PipelineStats.observeMillis(PipelineStats.Stage.COMPLETION, 20);
+    assertFalse(PipelineStats.update(now+6000, 60000));
+    PipelineStats.observeMillis(PipelineStats.Stage.COMPLETION, 90000);
+    assertTrue(PipelineStats.update(now+7000, 60000));
+  }
+
+  @Test
+  public void peakCoversWholeWindow() {
+    long now = 3000000;
+    PipelineStats.resetPeak();
+    assertEquals(0, PipelineStats.peak(PipelineStats.Stage.READ_DISPATCH));
+    PipelineStats.observeMillis(PipelineStats.Stage.READ_DISPATCH, 70);
+    PipelineStats.update(now, 50);
+    PipelineStats.update(now+6000, 50);
+    PipelineStats.update(now+12000, 50);
+    PipelineStats.observeMillis(PipelineStats.Stage.READ_DISPATCH, 10);
+    assertEquals(70*1000000L, PipelineStats.peak(PipelineStats.Stage.READ_DISPATCH));
+    PipelineStats.resetPeak();
+    assertEquals(0, PipelineStats.peak(PipelineStats.Stage.READ_DISPATCH));
+  }
+}
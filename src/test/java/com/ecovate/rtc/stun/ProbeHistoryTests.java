@@ -0,0 +1,130 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProbeHistoryTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void appendAndRollover() throws Exception {
+    ProbeHistory ph = new ProbeHistory(folder.getRoot(), 100000, 4, Runnable::run);
+    for(int i=0; i<10; i++) {
+      ph.record("127.0.0.1:3478", 1000+(i*1000), i%3 == 0 ? -1 : i);
+    }
+    assertEquals(3, segments(new File(folder.getRoot(), "127.0.0.1_3478")));
+    List<ByteBuffer> views = ph.snapshot("127.0.0.1:3478", 0, 20000);
+    assertEquals(3, views.size());
+
+    List<ByteBuffer> records = ProbeHistory.matchingRecords(views, 2500, 6500);
+    int size = 0;
+    for(ByteBuffer bb: records) {
+      size += bb.remaining();
+    }
+    assertEquals(4*ProbeHistory.RECORD_SIZE, size);
+    assertEquals(3000, records.get(0).getLong(0));
+    assertEquals(2, records.get(0).getInt(8));
+
+    List<ProbeHistory.HistoryBucket> buckets = ProbeHistory.downsample(views, 0, 9999, 5000);
+    assertEquals(2, buckets.size());
+    assertEquals(4, buckets.get(0).getRequests());
+    assertEquals(2, buckets.get(0).getFailed());
+    assertEquals(5, buckets.get(1).getRequests());
+    assertEquals(1, buckets.get(1).getFailed());
+    assertEquals(8, buckets.get(1).getLatency_max());
+    assertTrue(ph.snapshot("127.0.0.2:3478", 0, 20000).isEmpty());
+    ph.close();
+  }
+
+  @Test
+  public void reopenAndCleanup() throws Exception {
+    ProbeHistory ph = new ProbeHistory(folder.getRoot(), 5000, 4);
+    for(int i=0; i<6; i++) {
+      ph.record("127.0.0.1:3478", 1000+(i*1000), 10);
+    }
+    ph.close();
+
+    ph = new ProbeHistory(folder.getRoot(), 5000, 4);
+    ph.record("127.0.0.1:3478", 7000, 10);
+    List<ByteBuffer> views = ph.snapshot("127.0.0.1:3478", 0, 20000);
+    assertEquals(2, views.size());
+    assertEquals(4*ProbeHistory.RECORD_SIZE, views.get(0).remaining());
+    assertEquals(3*ProbeHistory.RECORD_SIZE, views.get(1).remaining());
+
+    ph.cleanup(7000);
+    assertEquals(2, ph.snapshot("127.0.0.1:3478", 0, 20000).size());
+    ph.cleanup(10000);
+    assertEquals(1, ph.snapshot("127.0.0.1:3478", 0, 20000).size());
+    ph.close();
+    // a probe finishing after close does not reopen the log.
+    ph.record("127.0.0.3:3478", 11000, 10);
+    assertFalse(new File(folder.getRoot(), "127.0.0.3_3478").exists());
+  }
+
+  @Test
+  public void nextSegmentPrepared() throws Exception {
+    ProbeHistory ph = new ProbeHistory(folder.getRoot(), 100000, 4, Runnable::run);
+    File dir = new File(folder.getRoot(), "127.0.0.1_3478");
+    File next = new File(dir, ProbeLog.NEXT_SEGMENT);
+    ph.record("127.0.0.1:3478", 1000, 10);
+    assertFalse(next.exists());
+    ph.record("127.0.0.1:3478", 2000, 10);
+    assertTrue(next.exists());
+    ph.record("127.0.0.1:3478", 3000, 10);
+    ph.record("127.0.0.1:3478", 4000, 10);
+    // rolling over renames the prepared segment.
+    ph.record("127.0.0.1:3478", 5000, 10);
+    assertFalse(next.exists());
+    assertTrue(new File(dir, "5000"+ProbeLog.SEGMENT_SUFFIX).exists());
+    assertEquals(2, segments(dir));
+    List<ByteBuffer> views = ph.snapshot("127.0.0.1:3478", 0, 20000);
+    assertEquals(1, views.get(1).remaining()/ProbeHistory.RECORD_SIZE);
+    assertEquals(5000, views.get(1).getLong(0));
+    ph.close();
+  }
+
+  @Test
+  public void cleanupClosedAndRestartedTargets() throws Exception {
+    ProbeHistory ph = new ProbeHistory(folder.getRoot(), 5000, 4, Runnable::run);
+    for(int i=0; i<6; i++) {
+      ph.record("127.0.0.1:3478", 1000+(i*1000), 10);
+      ph.record("127.0.0.2:3478", 1000+(i*1000), 10);
+    }
+    // a removed target can still be queried.
+    ph.close("127.0.0.1:3478");
+    assertEquals(2, ph.snapshot("127.0.0.1:3478", 0, 20000).size());
+    ph.close();
+
+    // after a restart only 127.0.0.2 is probed again.
+    ph = new ProbeHistory(folder.getRoot(), 5000, 4, Runnable::run);
+    ph.record("127.0.0.2:3478", 20000, 10);
+    ph.cleanup(10000);
+    assertEquals(1, ph.snapshot("127.0.0.1:3478", 0, 20000).size());
+    ph.cleanup(12000);
+    assertFalse(new File(folder.getRoot(), "127.0.0.1_3478").exists());
+    assertTrue(ph.snapshot("127.0.0.1:3478", 0, 20000).isEmpty());
+    assertEquals(1, ph.snapshot("127.0.0.2:3478", 0, 30000).size());
+    ph.close();
+  }
+
+  private static int segments(File dir) {
+    int count = 0;
+    for(File f: dir.listFiles()) {
+      if(f.getName().endsWith(ProbeLog.SEGMENT_SUFFIX)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
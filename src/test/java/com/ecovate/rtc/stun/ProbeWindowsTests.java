@@ -0,0 +1,49 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ProbeWindowsTests {
+  private static final long START = 1500000000000L;
+
+  @Test
+  public void windowsAtEachResolution() {
+    ProbeWindows pw = new ProbeWindows();
+    // one probe every 5s for 2 hours, every 10th times out.
+    for(int i=0; i<1440; i++) {
+      pw.record(START+(i*5000L), i%10 == 9 ? -1 : 30);
+    }
+    long now = START+(1439*5000L);
+    ProbeWindows.WindowStats minute = pw.get("1m", now);
+    assertEquals(12, minute.getRequests());
+    ProbeWindows.WindowStats hour = pw.get("1h", now);
+    assertEquals(720, hour.getRequests());
+    assertEquals(72, hour.getTimeouts());
+    assertEquals(.1, hour.getFailed(), 0.0001);
+    assertEquals(30, hour.getLatency(), 0.0001);
+    assertEquals(50, hour.getP99());
+    assertEquals(1440, pw.get("1d", now).getRequests());
+    // nothing recorded for a while ages out of the smaller windows.
+    assertEquals(0, pw.get("1m", now+120000).getRequests());
+    assertEquals(0, pw.get("5m", now+600000).getRequests());
+    assertEquals(1440, pw.get("1d", now+600000).getRequests());
+  }
+
+  @Test
+  public void percentiles() {
+    ProbeWindows pw = new ProbeWindows();
+    for(int i=0; i<100; i++) {
+      pw.record(START+i, i < 90 ? 8 : 150);
+    }
+    ProbeWindows.WindowStats ws = pw.current("1m");
+    assertEquals(10, ws.getP50());
+    assertEquals(10, ws.getP90());
+    assertEquals(200, ws.getP99());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void badRule() {
+    WindowRule.parse("2m:failed>0.2");
+  }
+}
@@ -0,0 +1,95 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PushExporterTests {
+
+  private static class ListSink implements PushExporter.Sink {
+    final List<String> packets = new ArrayList<>();
+
+    @Override
+    public boolean send(ByteBuffer packet) {
+      packets.add(StandardCharsets.UTF_8.decode(packet).toString());
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  public void statsdProbesCoalesced() {
+    ListSink sink = new ListSink();
+    PushExporter pe = new PushExporter(new SimulatedClock(0).getScheduler(), sink, 
+        PushExporter.Format.STATSD, PushExporter.Mode.PROBE, 1000, 1000, 200);
+    for(int i=0; i<20; i++) {
+      assertTrue(pe.offer("10.0.0.1:3478", 1000+i, i == 5 ? -1 : 20+i));
+    }
+    pe.flush();
+    int lines = 0;
+    for(String packet: sink.packets) {
+      assertTrue(packet.length() <= 200);
+      assertTrue(packet.endsWith("\n"));
+      lines += packet.split("\n").length;
+    }
+    assertEquals(20, lines);
+    assertTrue(sink.packets.size() > 1);
+    assertTrue(sink.packets.get(0).startsWith("stun.10_0_0_1_3478.rtt:20|ms\n"));
+    assertTrue(sink.packets.get(0).contains("stun.10_0_0_1_3478.timeouts:1|c\n"));
+  }
+
+  @Test
+  public void dropsWhenFull() {
+    ListSink sink = new ListSink();
+    PushExporter pe = new PushExporter(new SimulatedClock(0).getScheduler(), sink, 
+        PushExporter.Format.STATSD, PushExporter.Mode.PROBE, 1000, 3, 1432);
+    assertTrue(pe.offer("a:1", 0, 1));
+    assertTrue(pe.offer("a:1", 0, 2));
+    assertTrue(pe.offer("a:1", 0, 3));
+    assertFalse(pe.offer("a:1", 0, 4));
+    pe.flush();
+    assertEquals(1, sink.packets.size());
+    assertTrue(pe.offer("a:1", 0, 5));
+  }
+
+  @Test
+  public void influxInterval() {
+    ListSink sink = new ListSink();
+    PushExporter pe = new PushExporter(new SimulatedClock(0).getScheduler(), sink, 
+        PushExporter.Format.INFLUX, PushExporter.Mode.INTERVAL, 1000, 1000, 1432);
+    pe.offer("[2001:db8::1]:3478", 1000, 10);
+    pe.offer("[2001:db8::1]:3478", 2000, 30);
+    pe.offer("[2001:db8::1]:3478", 3000, -1);
+    pe.flush();
+    assertEquals("stun_interval,target=[2001:db8::1]:3478 requests=3i,timeouts=1i,latency=20.0000,max_latency=30i 3000000000\n", 
+        sink.packets.get(0));
+  }
+
+  @Test
+  public void timeoutsLeaveOutLatency() {
+    ListSink sink = new ListSink();
+    PushExporter pe = new PushExporter(new SimulatedClock(0).getScheduler(), sink, 
+        PushExporter.Format.INFLUX, PushExporter.Mode.PROBE, 1000, 1000, 1432);
+    pe.offer("10.0.0.1:3478", 1000, -1);
+    pe.flush();
+    assertEquals("stun_probe,target=10.0.0.1:3478 timeout=true 1000000000\n", sink.packets.get(0));
+
+    sink = new ListSink();
+    pe = new PushExporter(new SimulatedClock(0).getScheduler(), sink, 
+        PushExporter.Format.STATSD, PushExporter.Mode.INTERVAL, 1000, 1000, 1432);
+    pe.offer("10.0.0.1:3478", 1000, -1);
+    pe.offer("10.0.0.1:3478", 2000, -1);
+    pe.flush();
+    assertEquals("stun.10_0_0_1_3478.requests:2|c\nstun.10_0_0_1_3478.timeouts:2|c\n", sink.packets.get(0));
+  }
+}
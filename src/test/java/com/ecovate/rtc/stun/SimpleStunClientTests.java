@@ -232,6 +232,28 @@ public class SimpleStunClientTests {
     ssc.stop();
   }
 
+  @Test
+  public void restoreSamples() throws Exception {
+    SimpleStunClient ssc = new SimpleStunClient(SE, InetAddress.getByName("127.0.0.1"), 0, InetAddress.getByName("127.0.0.1"), udpPort, 10);
+    List<long[]> samples = new ArrayList<>();
+    for(int i=0; i<20; i++) {
+      samples.add(new long[] {i*1000, i%4 == 0 ? -1 : 10});
+    }
+    ssc.restore(20, 15, 5, 150, samples);
+    assertEquals(0.8, ssc.currentCompletedPCT(), 0.00001);
+    assertEquals(10, ssc.currentLatencyAvg(), 0.00001);
+    assertEquals(20, ssc.totalRequests());
+    assertEquals(0.75, ssc.totalCompletedPCT(), 0.00001);
+    assertEquals(10, ssc.totalLatencyAvg(), 0.00001);
+
+    List<long[]> restored = ssc.currentSamples();
+    assertEquals(10, restored.size());
+    assertEquals(10000, restored.get(0)[0]);
+    assertEquals(10, restored.get(0)[1]);
+    assertEquals(-1, restored.get(2)[1]);
+    ssc.stop();
+  }
+
   private void accept(Client c) {
     UDPClient uc = (UDPClient) c;
     ConcurrentLinkedQueue<ByteBuffer> cbb = new ConcurrentLinkedQueue<>();
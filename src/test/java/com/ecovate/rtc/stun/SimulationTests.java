@@ -0,0 +1,57 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SimulationTests {
+
+  private static final HealthConfig HEALTH = new HealthConfig(3, .3, 100, 80, .1, .05, 30000);
+
+  @Test
+  public void parseScript() {
+    List<List<SimulatedTarget.Segment>> timelines = Simulation.parseScript(Arrays.asList(
+        "# comment",
+        "1-2 60 500 10 0.5",
+        "* 30 40",
+        "2 90 20"), 4);
+    assertEquals(4, timelines.size());
+    assertEquals(2, timelines.get(0).size());
+    assertEquals(3, timelines.get(1).size());
+    assertEquals(4, timelines.get(2).size());
+    assertEquals(30000, timelines.get(2).get(1).start);
+    assertEquals(500, timelines.get(2).get(2).latency);
+    assertEquals(.5, timelines.get(2).get(2).loss, 0);
+    assertEquals(90000, timelines.get(2).get(3).start);
+  }
+
+  @Test
+  public void outageIsDetected() throws Exception {
+    List<List<SimulatedTarget.Segment>> timelines = Simulation.parseScript(Arrays.asList(
+        "1 600 20 0 1.0",
+        "1 1200 20 0 0"), 5);
+    Simulation.Report report = new Simulation(timelines, 1, 5000, 100, HEALTH).run(3600000);
+    assertEquals(1, report.getTargets_tripped());
+    Simulation.TargetResult tr = report.getChanged().get(0);
+    assertEquals(1, tr.getIndex());
+    assertEquals(2, tr.getTransitions().size());
+    assertTrue(tr.getTransitions().get(0).endsWith("DOWN"));
+    assertTrue(tr.getTransitions().get(1).endsWith("UP"));
+    // 3 timeouts in a row at a 5s delay and a 1s timeout.
+    assertTrue(tr.getDown_seconds() >= 570 && tr.getDown_seconds() <= 650);
+    assertTrue(report.getRequests() > 5*700);
+  }
+
+  @Test
+  public void runsAreRepeatable() throws Exception {
+    List<List<SimulatedTarget.Segment>> timelines = Simulation.parseScript(Arrays.asList(
+        "* 0 60 50 0.05"), 20);
+    String first = new Simulation(timelines, 7, 5000, 100, HEALTH).run(1800000).toJson();
+    String second = new Simulation(timelines, 7, 5000, 100, HEALTH).run(1800000).toJson();
+    assertEquals(first.replaceAll("\"wall_millis\": \\d+", ""), second.replaceAll("\"wall_millis\": \\d+", ""));
+  }
+}
@@ -0,0 +1,158 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.threadly.concurrent.SingleThreadScheduler;
+import org.threadly.util.Clock;
+
+public class StateSnapshotTests {
+  private static final HealthConfig HEALTH = new HealthConfig(3, .3, 100, 80, .1, .05, 30000);
+  private static final SingleThreadScheduler STS = new SingleThreadScheduler();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static StunTarget target(InetAddress ia, long rtt) {
+    SimpleStunClient ssc = new SimpleStunClient(StunClock.SYSTEM, STS, new SimpleStunClient.Transport() {
+      @Override
+      public void start(SimpleStunClient ssc) {}
+
+      @Override
+      public void write(ByteBuffer bb) {}
+
+      @Override
+      public void close() {}
+    }, 10);
+    long now = Clock.accurateForwardProgressingMillis();
+    List<long[]> samples = new ArrayList<>();
+    for(int i=0; i<5; i++) {
+      samples.add(new long[] {now-((5-i)*1000), i == 4 ? -1 : rtt});
+    }
+    ssc.restore(20, 15, 5, rtt*15, samples);
+    StunTarget st = new StunTarget(new InetSocketAddress(ia, 3478), ssc, HEALTH);
+    st.health.onProbe(now, rtt, now);
+    return st;
+  }
+
+  private StateSnapshot written() throws IOException {
+    StateSnapshot ss = new StateSnapshot(new File(folder.getRoot(), "snapshot"), StateSnapshot.DEFAULT_MAX_AGE);
+    ss.write(Arrays.asList(target(InetAddress.getByName("10.0.0.1"), 20), target(InetAddress.getByName("2001:db8::1"), 40)));
+    return ss;
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    StateSnapshot ss = written();
+    List<StateSnapshot.TargetState> states = ss.read();
+    assertEquals(2, states.size());
+    assertEquals(new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 3478), states.get(1).getAddress());
+    assertEquals(5, states.get(1).getSampleCount());
+
+    StunTarget restored = target(InetAddress.getByName("2001:db8::1"), 0);
+    restored.client.resetStats();
+    states.get(1).apply(restored);
+    assertEquals(20, restored.client.totalRequests());
+    assertEquals(5, restored.client.totalFailedRequests());
+    assertEquals(40, restored.client.currentLatencyAvg(), 0.0001);
+    assertEquals(.2, restored.client.currentFailedPCT(), 0.0001);
+    assertEquals(40, restored.health.getEwmaLatency(), 0.0001);
+    assertEquals(HealthTracker.State.UP, restored.health.getState());
+  }
+
+  @Test
+  public void tooOldIsIgnored() throws Exception {
+    StateSnapshot ss = written();
+    try(RandomAccessFile raf = new RandomAccessFile(ss.getFile(), "rw")) {
+      // the write time follows the magic and version.
+      raf.seek(8);
+      raf.writeLong(Clock.accurateTimeMillis()-StateSnapshot.DEFAULT_MAX_AGE-1000);
+    }
+    assertTrue(ss.read().isEmpty());
+  }
+
+  @Test
+  public void truncatedOrCorrupt() throws Exception {
+    StateSnapshot ss = written();
+    File f = ss.getFile();
+    long length = f.length();
+    try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.setLength(length-10);
+    }
+    try {
+      ss.read();
+      fail("truncated snapshot was read");
+    } catch(IOException e) {
+      // expected
+    }
+
+    ss = written();
+    try(RandomAccessFile raf = new RandomAccessFile(ss.getFile(), "rw")) {
+      // the first targets address length.
+      raf.seek(20);
+      raf.writeByte(7);
+    }
+    try {
+      ss.read();
+      fail("corrupt snapshot was read");
+    } catch(IOException e) {
+      assertTrue(e.getMessage().contains("address length"));
+    }
+
+    try(RandomAccessFile raf = new RandomAccessFile(ss.getFile(), "rw")) {
+      raf.seek(0);
+      raf.writeInt(0);
+    }
+    assertTrue(ss.read().isEmpty());
+  }
+
+  @Test
+  public void hostnameTargetSurvivesStartup() throws Exception {
+    StateSnapshot ss = new StateSnapshot(new File(folder.getRoot(), "snapshot"), StateSnapshot.DEFAULT_MAX_AGE);
+    InetSocketAddress isa = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 3478);
+    ss.write(Arrays.asList(target(isa.getAddress(), 20)));
+    SimulatedClock clock = new SimulatedClock(Clock.accurateTimeMillis());
+    // the source is only run when the clock is advanced, so nothing is resolved later behind startups back.
+    StaticTargetSource source = new StaticTargetSource(
+        Arrays.asList(InetSocketAddress.createUnresolved("localhost", 3478)), clock.getScheduler());
+    StunHTTP stunHTTP = new StunHTTP(clock, clock.getScheduler(), (target)->new SimpleStunClient.Transport() {
+      @Override
+      public void start(SimpleStunClient ssc) {}
+
+      @Override
+      public void write(ByteBuffer bb) {}
+
+      @Override
+      public void close() {}
+    }, null, Collections.emptyList(), Collections.singletonList(source), 1000, 10, HEALTH, new TargetRanking(), 
+        null, ss, null, null, null, null);
+    try {
+      StunTarget restored = null;
+      for(StunTarget st: stunHTTP.getTargets()) {
+        if(st.address.equals(isa)) {
+          restored = st;
+        }
+      }
+      assertNotNull(restored);
+      assertEquals(20, restored.client.totalRequests());
+    } finally {
+      stunHTTP.stop();
+    }
+  }
+}
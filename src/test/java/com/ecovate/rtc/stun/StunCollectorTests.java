@@ -0,0 +1,84 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.threadly.concurrent.SingleThreadScheduler;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+public class StunCollectorTests {
+  private static final HealthConfig HEALTH = new HealthConfig(3, .3, 1000, 800, .9, .5, 30000);
+  private static final SingleThreadScheduler STS = new SingleThreadScheduler();
+
+  private static StunTarget target(String ip, long rtt, int failures) throws Exception {
+    SimpleStunClient ssc = new SimpleStunClient(StunClock.SYSTEM, STS, new SimpleStunClient.Transport() {
+      @Override
+      public void start(SimpleStunClient ssc) {}
+
+      @Override
+      public void write(ByteBuffer bb) {}
+
+      @Override
+      public void close() {}
+    }, 10);
+    List<long[]> samples = new ArrayList<>();
+    for(int i=0; i<10; i++) {
+      samples.add(new long[] {i*1000, i < failures ? -1 : rtt});
+    }
+    ssc.restore(10, 10-failures, failures, rtt*(10-failures), samples);
+    return new StunTarget(new InetSocketAddress(InetAddress.getByName(ip), 3478), ssc, HEALTH);
+  }
+
+  private static Double value(List<MetricFamilySamples> mfs, String name, String ... labels) {
+    for(MetricFamilySamples mf: mfs) {
+      for(MetricFamilySamples.Sample s: mf.samples) {
+        if(s.name.equals(name) && s.labelValues.equals(Arrays.asList(labels))) {
+          return s.value;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void collectsEveryTarget() throws Exception {
+    StunTarget down = target("10.0.0.1", 100, 2);
+    for(int i=0; i<3; i++) {
+      down.health.onProbe(i*1000, -1, i*1000);
+    }
+    StunTarget up = target("10.0.0.2", 20, 0);
+    List<MetricFamilySamples> mfs = new StunCollector(Arrays.asList(down, up)).collect();
+
+    assertEquals(12, mfs.size());
+    assertEquals(Collector.Type.COUNTER, mfs.get(0).type);
+    assertEquals(Arrays.asList("ip", "port"), mfs.get(0).samples.get(0).labelNames);
+    assertEquals(10, value(mfs, "stun_target_requests_total", "10.0.0.1", "3478"), 0);
+    assertEquals(8, value(mfs, "stun_target_completed_total", "10.0.0.1", "3478"), 0);
+    assertEquals(2, value(mfs, "stun_target_timeouts_total", "10.0.0.1", "3478"), 0);
+    assertEquals(0, value(mfs, "stun_target_timeouts_total", "10.0.0.2", "3478"), 0);
+
+    // latencies are kept in millis and exported in seconds.
+    assertEquals(.1, value(mfs, "stun_target_current_latency_seconds", "10.0.0.1", "3478"), 0.0001);
+    assertEquals(.1, value(mfs, "stun_target_total_latency_seconds", "10.0.0.1", "3478"), 0.0001);
+    assertEquals(.02, value(mfs, "stun_target_latency_quantile_seconds", "10.0.0.2", "3478", "0.5"), 0.0001);
+    assertEquals(.02, value(mfs, "stun_target_latency_quantile_seconds", "10.0.0.2", "3478", "0.99"), 0.0001);
+    assertNull(value(mfs, "stun_target_latency_quantile_seconds", "10.0.0.2", "3478", ".5"));
+    assertEquals(.2, value(mfs, "stun_target_current_failed_ratio", "10.0.0.1", "3478"), 0.0001);
+    assertEquals(.2, value(mfs, "stun_target_total_failed_ratio", "10.0.0.1", "3478"), 0.0001);
+
+    assertEquals(0, value(mfs, "stun_target_up", "10.0.0.1", "3478"), 0);
+    assertEquals(1, value(mfs, "stun_target_up", "10.0.0.2", "3478"), 0);
+    assertEquals(3, value(mfs, "stun_target_consecutive_failures", "10.0.0.1", "3478"), 0);
+    assertEquals(0, value(mfs, "stun_target_consecutive_failures", "10.0.0.2", "3478"), 0);
+  }
+}
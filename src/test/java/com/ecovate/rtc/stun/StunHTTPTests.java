@@ -0,0 +1,82 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class StunHTTPTests {
+
+  @Test
+  public void targetKeys() throws Exception {
+    assertEquals("127.0.0.1:3478", StunHTTP.targetKey(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 3478)));
+    assertEquals("[0:0:0:0:0:0:0:1]:5000", StunHTTP.targetKey(new InetSocketAddress(InetAddress.getByName("::1"), 5000)));
+    assertEquals("127.0.0.1:3478", StunHTTP.requestKey("127.0.0.1"));
+    assertEquals("127.0.0.1:1234", StunHTTP.requestKey("127.0.0.1:1234"));
+    assertEquals("[0:0:0:0:0:0:0:1]:3478", StunHTTP.requestKey("[0:0:0:0:0:0:0:1]"));
+    assertEquals("stun.test.com:3478", StunHTTP.requestKey("STUN.test.com"));
+  }
+
+  @Test
+  public void ipv6RequestKeys() throws Exception {
+    String key = StunHTTP.targetKey(new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 3478));
+    assertEquals(key, StunHTTP.requestKey("[2001:db8::1]:3478"));
+    assertEquals(key, StunHTTP.requestKey("[2001:DB8::1]"));
+    assertEquals(key, StunHTTP.requestKey("2001:db8::1"));
+    assertEquals(key, StunHTTP.requestKey("[2001:db8:0:0:0:0:0:1]:3478"));
+    assertEquals("[2001:db8:0:0:0:0:0:1]:5000", StunHTTP.requestKey("[2001:db8::1]:5000"));
+    assertEquals("stun.test.com:5000", StunHTTP.requestKey("stun.test.com:5000"));
+    assertEquals("localhost:1234", StunHTTP.hostKey(InetSocketAddress.createUnresolved("LocalHost", 1234)));
+  }
+
+  @Test
+  public void requestKeysNeverResolve() {
+    assertNull(StunHTTP.requestKey("[stun.test.com]"));
+    assertNull(StunHTTP.requestKey("[stun.test.com]:3478"));
+    assertNull(StunHTTP.requestKey("not:a:literal"));
+    assertNull(StunHTTP.requestKey("[2001:db8::1::2]"));
+    assertEquals("127.0.0.1:3478", StunHTTP.requestKey("[127.0.0.1]"));
+    // not an IPv4 literal, so it is only ever used as a host key.
+    assertEquals("999.1.1.1:3478", StunHTTP.requestKey("999.1.1.1"));
+  }
+
+  @Test
+  public void probeBindAddresses() throws Exception {
+    InetAddress listen = InetAddress.getByName("127.0.0.1");
+    InetAddress v4 = InetAddress.getByName("10.0.0.1");
+    InetAddress v6 = InetAddress.getByName("2001:db8::1");
+    List<InetAddress> none = Collections.emptyList();
+    assertEquals(listen, StunHTTP.bindAddressFor(none, listen, v4));
+    assertEquals(InetAddress.getByName("::"), StunHTTP.bindAddressFor(none, listen, v6));
+    InetAddress bind6 = InetAddress.getByName("2001:db8::5");
+    assertEquals(bind6, StunHTTP.bindAddressFor(Arrays.asList(bind6), listen, v6));
+    assertEquals(listen, StunHTTP.bindAddressFor(Arrays.asList(bind6), listen, v4));
+    InetAddress bind4 = InetAddress.getByName("10.0.0.5");
+    assertEquals(bind4, StunHTTP.bindAddressFor(Arrays.asList(bind6, bind4), listen, v4));
+  }
+
+  @Test
+  public void queryParams() {
+    Map<String, String> raw = new HashMap<>();
+    raw.put("count", "5");
+    raw.put("target", "127.0.0.1%3A3478");
+    raw.put("to", null);
+    raw.put("bad", "100%");
+    Map<String, String> params = StunHTTP.decodeQuery(raw);
+    assertEquals(4, params.size());
+    assertEquals("5", params.get("count"));
+    assertEquals("127.0.0.1:3478", params.get("target"));
+    assertEquals("", params.get("to"));
+    assertEquals("100%", params.get("bad"));
+    assertTrue(StunHTTP.decodeQuery(null).isEmpty());
+  }
+}
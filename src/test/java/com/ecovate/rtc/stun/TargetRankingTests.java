@@ -0,0 +1,110 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.threadly.concurrent.SingleThreadScheduler;
+
+public class TargetRankingTests {
+  private static final HealthConfig HEALTH = new HealthConfig(3, .3, 1000, 800, .9, .5, 30000);
+  private static final SingleThreadScheduler STS = new SingleThreadScheduler();
+
+  private static StunTarget target(String ip, long rtt, int failures) throws Exception {
+    SimpleStunClient ssc = new SimpleStunClient(StunClock.SYSTEM, STS, new SimpleStunClient.Transport() {
+      @Override
+      public void start(SimpleStunClient ssc) {}
+
+      @Override
+      public void write(ByteBuffer bb) {}
+
+      @Override
+      public void close() {}
+    }, 10);
+    List<long[]> samples = new ArrayList<>();
+    for(int i=0; i<10; i++) {
+      samples.add(new long[] {i*1000, i < failures ? -1 : rtt});
+    }
+    ssc.restore(10, 10-failures, failures, rtt*(10-failures), samples);
+    return new StunTarget(new InetSocketAddress(InetAddress.getByName(ip), 3478), ssc, HEALTH);
+  }
+
+  private static List<String> top(TargetRanking ranking, int count) {
+    List<String> targets = new ArrayList<>();
+    for(TargetRanking.RankedTarget rt: ranking.top(count)) {
+      targets.add(rt.getTarget());
+    }
+    return targets;
+  }
+
+  @Test
+  public void orderedByScore() throws Exception {
+    TargetRanking ranking = new TargetRanking(90, 10, 2);
+    assertTrue(ranking.update(target("10.0.0.1", 50, 0)));
+    assertTrue(ranking.update(target("10.0.0.2", 20, 0)));
+    // 10% loss doubles the score of a 15ms target to 30ms.
+    assertTrue(ranking.update(target("10.0.0.3", 15, 1)));
+    assertEquals(2, ranking.getDefaultCount());
+    assertEquals(3, ranking.top(10).size());
+    assertEquals(2, top(ranking, 2).size());
+    assertEquals("10.0.0.2:3478", top(ranking, 3).get(0));
+    assertEquals("10.0.0.3:3478", top(ranking, 3).get(1));
+    assertEquals("10.0.0.1:3478", top(ranking, 3).get(2));
+    assertEquals(30, ranking.top(3).get(1).getScore(), 0.0001);
+  }
+
+  @Test
+  public void updateAndRemove() throws Exception {
+    TargetRanking ranking = new TargetRanking();
+    StunTarget a = target("10.0.0.1", 50, 0);
+    StunTarget b = target("10.0.0.2", 20, 0);
+    ranking.update(a);
+    ranking.update(b);
+    assertEquals("10.0.0.2:3478", top(ranking, 1).get(0));
+    // stats getting worse moves the target down without a duplicate entry.
+    StunTarget slowB = target("10.0.0.2", 80, 0);
+    ranking.update(slowB);
+    assertEquals(2, ranking.top(10).size());
+    assertEquals("10.0.0.1:3478", top(ranking, 1).get(0));
+    // a target that goes down is dropped.
+    for(int i=0; i<3; i++) {
+      a.health.onProbe(i*1000, -1, i*1000);
+    }
+    assertFalse(a.health.isUp());
+    assertTrue(ranking.update(a));
+    assertEquals(1, ranking.top(10).size());
+    assertEquals("10.0.0.2:3478", top(ranking, 1).get(0));
+    assertFalse(ranking.update(a));
+    assertTrue(ranking.remove(slowB.address));
+    assertTrue(ranking.top(10).isEmpty());
+    assertFalse(ranking.remove(slowB.address));
+  }
+
+  @Test
+  public void onlyChangesAreReported() throws Exception {
+    TargetRanking ranking = new TargetRanking();
+    StunTarget a = target("10.0.0.1", 50, 0);
+    assertTrue(ranking.update(a));
+    assertFalse(ranking.update(a));
+    assertTrue(ranking.update(target("10.0.0.1", 60, 0)));
+    assertEquals(60, ranking.top(1).get(0).getLatency(), 0.0001);
+  }
+
+  @Test
+  public void onlyTimeoutsAreNotRanked() throws Exception {
+    TargetRanking ranking = new TargetRanking();
+    ranking.update(target("10.0.0.1", 50, 0));
+    StunTarget timeouts = target("10.0.0.2", 0, 10);
+    assertTrue(timeouts.health.isUp());
+    assertFalse(ranking.update(timeouts));
+    assertEquals(1, ranking.top(10).size());
+    assertEquals("10.0.0.1:3478", top(ranking, 1).get(0));
+  }
+}
@@ -0,0 +1,172 @@
+package com.ecovate.rtc.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.threadly.concurrent.NoThreadScheduler;
+
+public class TargetRegistryTests {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void refCountedTargets() {
+    final List<String> events = new ArrayList<>();
+    TargetRegistry tr = new TargetRegistry(new TargetRegistry.Listener() {
+      @Override
+      public void targetAdded(InetSocketAddress address) {
+        events.add("add:"+address.getPort());
+      }
+
+      @Override
+      public void targetRemoved(InetSocketAddress address) {
+        events.add("remove:"+address.getPort());
+      }
+
+      @Override
+      public void hostChanged(String host) {
+        events.add("host:"+host);
+      }
+    });
+    InetSocketAddress a = new InetSocketAddress("127.0.0.1", 1000);
+    InetSocketAddress b = new InetSocketAddress("127.0.0.2", 1000);
+
+    tr.targetAdded(null, "stun.test.com:1000", a);
+    tr.targetAdded(null, null, a);
+    tr.targetAdded(null, "stun.test.com:1000", b);
+    assertTrue(tr.contains(a));
+    assertEquals(2, tr.getHostTargets("stun.test.com:1000").size());
+    assertEquals(1, tr.getTargetHosts(a).size());
+
+    tr.targetRemoved(null, "stun.test.com:1000", a);
+    assertTrue(tr.contains(a));
+    assertTrue(tr.getTargetHosts(a).isEmpty());
+    tr.targetRemoved(null, null, a);
+    assertFalse(tr.contains(a));
+    tr.targetRemoved(null, null, a);
+    assertEquals(1, tr.getHostTargets("stun.test.com:1000").size());
+
+    assertEquals("add:1000", events.get(0));
+    assertEquals("host:stun.test.com:1000", events.get(1));
+    assertEquals(6, events.size());
+    assertEquals("remove:1000", events.get(5));
+  }
+
+  @Test
+  public void hostRefCountedPerSource() {
+    TargetRegistry tr = new TargetRegistry(new NoopListener());
+    InetSocketAddress a = new InetSocketAddress("127.0.0.1", 1000);
+    TargetSource s1 = new StaticTargetSource(new ArrayList<>(), new NoThreadScheduler());
+    TargetSource s2 = new StaticTargetSource(new ArrayList<>(), new NoThreadScheduler());
+
+    tr.targetAdded(s1, "stun.test.com:1000", a);
+    tr.targetAdded(s2, "stun.test.com:1000", a);
+    tr.targetRemoved(s1, "stun.test.com:1000", a);
+    assertTrue(tr.contains(a));
+    assertEquals(1, tr.getHostTargets("stun.test.com:1000").size());
+    assertEquals(1, tr.getTargetHosts(a).size());
+    tr.targetRemoved(s2, "stun.test.com:1000", a);
+    assertFalse(tr.contains(a));
+    assertTrue(tr.getHosts().isEmpty());
+    assertTrue(tr.getTargetHosts(a).isEmpty());
+  }
+
+  @Test
+  public void fileSourceReloads() throws IOException {
+    File file = new File(folder.getRoot(), "targets");
+    write(file, "# stun servers", "127.0.0.1:1000", "127.0.0.2:1000", "bad:port");
+    TargetRegistry tr = new TargetRegistry(new NoopListener());
+    FileTargetSource fts = new FileTargetSource(file, new NoThreadScheduler());
+    fts.start(tr);
+    try {
+      assertEquals(new HashSet<>(Arrays.asList(new InetSocketAddress("127.0.0.1", 1000), 
+          new InetSocketAddress("127.0.0.2", 1000))), tr.getTargets());
+
+      write(file, "127.0.0.2:1000", "127.0.0.3:1000");
+      fts.reload();
+      assertEquals(new HashSet<>(Arrays.asList(new InetSocketAddress("127.0.0.2", 1000), 
+          new InetSocketAddress("127.0.0.3", 1000))), tr.getTargets());
+
+      file.delete();
+      fts.reload();
+      assertTrue(tr.getTargets().isEmpty());
+    } finally {
+      fts.stop();
+    }
+  }
+
+  @Test
+  public void adminSourceResolvesOnScheduler() {
+    NoThreadScheduler scheduler = new NoThreadScheduler();
+    TargetRegistry tr = new TargetRegistry(new NoopListener());
+    AdminTargetSource admin = new AdminTargetSource(scheduler, null);
+    admin.start(tr);
+    try {
+      assertTrue(admin.add("127.0.0.1:1000"));
+      assertFalse(admin.add("127.0.0.1:1000"));
+      assertTrue(tr.contains(new InetSocketAddress("127.0.0.1", 1000)));
+
+      assertTrue(admin.add("localhost:2000"));
+      assertTrue(tr.getHostTargets("localhost:2000").isEmpty());
+      scheduler.tick(null);
+      assertFalse(tr.getHostTargets("localhost:2000").isEmpty());
+      assertEquals(2, admin.getServers().size());
+
+      assertTrue(admin.remove("localhost:2000"));
+      assertFalse(admin.remove("localhost:2000"));
+      assertTrue(tr.getHostTargets("localhost:2000").isEmpty());
+      assertEquals(1, tr.getTargets().size());
+    } finally {
+      admin.stop();
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void adminSourceBadServer() {
+    new AdminTargetSource(new NoThreadScheduler(), null).add("[::1");
+  }
+
+  @Test
+  public void parseServers() {
+    InetSocketAddress isa = ResolvingTargetSource.parseServer("stun.test.com");
+    assertEquals("stun.test.com", isa.getHostString());
+    assertEquals(ResolvingTargetSource.DEFAULT_STUN_PORT, isa.getPort());
+    isa = ResolvingTargetSource.parseServer("10.1.1.1:2234");
+    assertEquals("10.1.1.1", isa.getHostString());
+    assertEquals(2234, isa.getPort());
+    assertTrue(ResolvingTargetSource.isIPLiteral("10.1.1.1"));
+    assertFalse(ResolvingTargetSource.isIPLiteral("stun.test.com"));
+  }
+
+  private static void write(File file, String ... lines) throws IOException {
+    Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+  }
+
+  private static class NoopListener implements TargetRegistry.Listener {
+    @Override
+    public void targetAdded(InetSocketAddress address) {
+    }
+
+    @Override
+    public void targetRemoved(InetSocketAddress address) {
+    }
+
+    @Override
+    public void hostChanged(String host) {
+    }
+  }
+}